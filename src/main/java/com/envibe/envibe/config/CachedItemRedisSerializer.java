@@ -0,0 +1,149 @@
+package com.envibe.envibe.config;
+
+import com.envibe.envibe.model.CachedItem;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Value serializer for the temporary datastore. Writes {@link CachedItem}s in a compact binary format: a magic byte, a version
+ * byte, then the purpose, user_tag, and payload as varint length-prefixed UTF-8 strings. Any other value, and every value when
+ * the compact format is turned off, is written with JDK serialization. Both formats are always readable, so values written
+ * before the switch keep working until they are overwritten or expire.
+ *
+ * @author ARMmaster17
+ */
+public class CachedItemRedisSerializer implements RedisSerializer<Object> {
+
+    /**
+     * First byte of every value in the compact format. JDK serialization always starts with 0xAC, so the two can't be confused.
+     */
+    static final byte MAGIC = (byte) 0xCE;
+
+    /**
+     * Version of the compact format that is written.
+     */
+    static final byte VERSION = 1;
+
+    /**
+     * Serializer used for the legacy format.
+     */
+    private final JdkSerializationRedisSerializer jdkSerializer = new JdkSerializationRedisSerializer();
+
+    /**
+     * Whether CachedItems are written in the compact format.
+     */
+    private final boolean compact;
+
+    /**
+     * Creates a serializer.
+     * @param compact True to write CachedItems in the compact format, false to keep writing JDK serialization.
+     */
+    public CachedItemRedisSerializer(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Converts a value to bytes.
+     * @param value Value to store.
+     * @return Serialized value.
+     * @throws SerializationException If the value is not a CachedItem and can't be serialized by the JDK.
+     */
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) return new byte[0];
+        if (!compact || !(value instanceof CachedItem)) return jdkSerializer.serialize(value);
+        CachedItem cachedItem = (CachedItem) value;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + (cachedItem.getPayload() == null ? 0 : cachedItem.getPayload().length()));
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeString(out, cachedItem.getPurpose());
+        writeString(out, cachedItem.getUserTag());
+        writeString(out, cachedItem.getPayload());
+        return out.toByteArray();
+    }
+
+    /**
+     * Converts bytes back to a value, detecting which format they were written in.
+     * @param bytes Serialized value.
+     * @return Deserialized value, or null if bytes is empty.
+     * @throws SerializationException If the bytes are in neither format.
+     */
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) return null;
+        if (bytes[0] != MAGIC) return jdkSerializer.deserialize(bytes);
+        if (bytes.length < 2 || bytes[1] != VERSION) {
+            throw new SerializationException("Unsupported CachedItem format version");
+        }
+        int[] position = { 2 };
+        String purpose = readString(bytes, position);
+        String user_tag = readString(bytes, position);
+        String payload = readString(bytes, position);
+        return new CachedItem(purpose, user_tag, payload);
+    }
+
+    /**
+     * Writes a String as a varint length followed by its UTF-8 bytes. The length is stored plus one so that zero means null.
+     * @param out Stream to write to.
+     * @param value String to write. May be null.
+     */
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads a String written by {@link CachedItemRedisSerializer#writeString(ByteArrayOutputStream, String)}.
+     * @param bytes Serialized value.
+     * @param position Single element array holding the read position. Advanced past the String.
+     * @return Decoded String. May be null.
+     */
+    private static String readString(byte[] bytes, int[] position) {
+        int length = readVarint(bytes, position);
+        if (length == 0) return null;
+        length--;
+        if (position[0] + length > bytes.length) throw new SerializationException("Truncated CachedItem");
+        String value = new String(bytes, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return value;
+    }
+
+    /**
+     * Writes a non-negative int as an unsigned LEB128 varint, seven bits per byte.
+     * @param out Stream to write to.
+     * @param value Value to write.
+     */
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint.
+     * @param bytes Serialized value.
+     * @param position Single element array holding the read position. Advanced past the varint.
+     * @return Decoded value.
+     */
+    static int readVarint(byte[] bytes, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= bytes.length) throw new SerializationException("Truncated CachedItem");
+            byte b = bytes[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new SerializationException("Malformed varint in CachedItem");
+    }
+}
@@ -1,11 +1,14 @@
 package com.envibe.envibe.config;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Protocol;
 
@@ -20,6 +23,12 @@ import java.net.URISyntaxException;
 @Configuration
 public class RedisConfig {
 
+    /**
+     * Format that CachedItems are written in. Either compact or jdk. Both formats can always be read.
+     */
+    @Value("${envibe.cache.codec:compact}")
+    private String codec;
+
     /**
      * Static function to return Factory object that can be used to generate Redis connections from a common pool.
      * @return Initialized factory object with all environment variables imported.
@@ -56,6 +65,7 @@ public class RedisConfig {
 
     /**
      * Generates a template with a connection from the global Redis pool to run queries against.
+     * Keys are stored as plain UTF-8 Strings and values use {@link CachedItemRedisSerializer}.
      * @return Generic RedisTemplate object that can handle any ISerializable object with a String key.
      * @throws URISyntaxException If supplied REDIS_URL contains invalid syntax or missing fields (must be FQDN with authentication credentials).
      */
@@ -65,7 +75,22 @@ public class RedisConfig {
         RedisTemplate<String, Object> template = new RedisTemplate<>();
         // Connect template object to the Jedis factory that manages the connection pool.
         template.setConnectionFactory(jedisConnectionFactory());
+        // Store keys as readable Strings and CachedItems in the configured format.
+        template.setKeySerializer(new StringRedisSerializer());
+        template.setHashKeySerializer(new StringRedisSerializer());
+        template.setValueSerializer(new CachedItemRedisSerializer("compact".equals(codec)));
         // Return final template object.
         return template;
     }
+
+    /**
+     * Generates a template with a connection from the global Redis pool for native Redis structures (lists, sets) whose members are plain Strings.
+     * @return StringRedisTemplate object that stores keys and values as UTF-8 Strings.
+     * @throws URISyntaxException If supplied REDIS_URL contains invalid syntax or missing fields (must be FQDN with authentication credentials).
+     */
+    @Bean
+    public StringRedisTemplate stringRedisTemplate() throws URISyntaxException {
+        // The String template is ready to use as soon as it has a connection factory.
+        return new StringRedisTemplate(jedisConnectionFactory());
+    }
 }
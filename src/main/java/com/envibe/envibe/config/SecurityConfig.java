@@ -62,6 +62,9 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
                 // The following endpoints do not require authorization.
                 .antMatchers("/", "/login", "/register", "/assets/**")
                 .permitAll()
+                // Administrative endpoints require the admin role.
+                .antMatchers("/api/v1/admin/**")
+                .hasRole("ADMIN")
                 .anyRequest()
                 .authenticated()
             // Start a new rule.
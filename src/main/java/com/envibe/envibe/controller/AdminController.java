@@ -0,0 +1,85 @@
+package com.envibe.envibe.controller;
+
+import com.envibe.envibe.dao.NearCache;
+import com.envibe.envibe.service.FeedCompactionService;
+import com.envibe.envibe.service.FeedWarmupService;
+import com.envibe.envibe.service.NewsFeedRebuildService;
+import com.envibe.envibe.service.NewsFeedUpdateService;
+import com.google.gson.Gson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Handles API calls used by administrators to monitor background services. Restricted to ROLE_ADMIN in {@link com.envibe.envibe.config.SecurityConfig}.
+ *
+ * @author ARMmaster17
+ */
+@Controller
+public class AdminController {
+
+    /**
+     * Injected service that handles the news feed worker pool.
+     */
+    @Autowired
+    NewsFeedUpdateService newsFeedUpdateService;
+
+    /**
+     * Injected service that trims and drops news feed caches in the background.
+     */
+    @Autowired
+    FeedCompactionService feedCompactionService;
+
+    /**
+     * Injected service that rebuilds missing news feed caches from the persistent datastore.
+     */
+    @Autowired
+    NewsFeedRebuildService newsFeedRebuildService;
+
+    /**
+     * Injected service that fills the news feeds of recently active users after Redis comes up empty.
+     */
+    @Autowired
+    FeedWarmupService feedWarmupService;
+
+    /**
+     * Injected in-process cache that sits in front of the temporary datastore.
+     */
+    @Autowired
+    NearCache nearCache;
+
+    /**
+     * Returns runtime statistics of background services so they can be sized in production.
+     * @return JSON object with one section per service.
+     */
+    @GetMapping(value = "/api/v1/admin/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String apiStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("newsFeedWorkers", newsFeedUpdateService.getStatistics());
+        statistics.put("newsFeedQueue", newsFeedUpdateService.getQueueStatistics());
+        statistics.put("nearCache", nearCache.getStatistics());
+        statistics.put("feedCompaction", feedCompactionService.getStatistics());
+        statistics.put("feedRebuild", newsFeedRebuildService.getStatistics());
+        statistics.put("feedWarmup", feedWarmupService.getStatistics());
+        return new Gson().toJson(statistics);
+    }
+
+    /**
+     * Starts a news feed warm-up in the background. Progress is reported under feedWarmup in the statistics.
+     * @return JSON object that tells if the warm-up was started, or if one was already running.
+     */
+    @PostMapping(value = "/api/v1/admin/feed/warmup", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String apiStartFeedWarmup() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("started", feedWarmupService.start());
+        return new Gson().toJson(result);
+    }
+}
@@ -1,12 +1,13 @@
 package com.envibe.envibe.controller;
 
 import com.envibe.envibe.dao.NewsItemDao;
-import com.envibe.envibe.dao.UserDao;
 import com.envibe.envibe.dto.NewsFeedItemDto;
+import com.envibe.envibe.exception.InvalidFeedCursorException;
 import com.envibe.envibe.model.NewsItem;
-import com.envibe.envibe.model.User;
+import com.envibe.envibe.service.FeedCursorService;
 import com.envibe.envibe.service.NewsFeedRetrievalService;
 import com.envibe.envibe.service.RelationshipDisplayService;
+import com.envibe.envibe.service.SuggestionService;
 import com.google.gson.Gson;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
@@ -19,6 +20,7 @@ import javax.validation.constraints.Null;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -45,8 +47,17 @@ public class FeedController {
     @Autowired
     NewsItemDao newsItemDao;
 
+    /**
+     * Injected service that suggests users to follow.
+     */
     @Autowired
-    UserDao userDao;
+    SuggestionService suggestionService;
+
+    /**
+     * Injected service that checks the news feed cursors sent by clients.
+     */
+    @Autowired
+    FeedCursorService feedCursorService;
 
     /**
      * Returns a view that can display news feed posts.
@@ -57,18 +68,9 @@ public class FeedController {
     public String userFeed(Model model, HttpServletRequest request) {
         ArrayList<String> friends = new ArrayList<>(relationshipDisplayService.FriendsList(request.getRemoteUser()));
         model.addAttribute("FriendRef", friends);
-        ArrayList<String> notFriends = new ArrayList<>();
-        List<User> rawUsers = userDao.readAll();
-        for (User u : rawUsers) {
-            boolean notFriend = true;
-            for (String username : friends){
-                if(u.getUsername() == username) {
-                    notFriend = false;
-                    break;
-                }
-            }
-            if (notFriend) notFriends.add(u.getUsername());
-        }
+        ArrayList<String> notFriends = new ArrayList<>(suggestionService.getSuggestions(request.getRemoteUser()));
+        // A cached page may have been built just before a follow landed, so leave out anyone who is followed by now.
+        notFriends.removeAll(new HashSet<>(friends));
         model.addAttribute("NotFriends", notFriends);
         return "Feed";
     }
@@ -79,13 +81,18 @@ public class FeedController {
      * @param request Access class that allows us to read session data from the user's browser.
      * @param count Number of posts to return.
      * @param after Last post_id received by the client.
-     * @return List of news items with specified parameters.
+     * @param cursor Cursor of the last news item received by the client. Takes precedence over after.
+     * @return List of news items with specified parameters. Each item carries the cursor that continues after it.
+     * @throws InvalidFeedCursorException If the cursor was not issued by this endpoint.
      */
     @GetMapping(value = "/api/v1/feed/user", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    public String apiUserFeed(Model model, HttpServletRequest request, @RequestParam(required = false) int count, @RequestParam(required = false) int after) {
+    public String apiUserFeed(Model model, HttpServletRequest request, @RequestParam(defaultValue = "0") int count, @RequestParam(defaultValue = "0") long after,
+                              @RequestParam(required = false) String cursor) throws InvalidFeedCursorException {
         List<NewsFeedItemDto> newsFeed;
-        if (count == 0) {
+        if (cursor != null && !cursor.isEmpty()) {
+            newsFeed = newsFeedRetrievalService.getNewsFeed(request.getRemoteUser(), count, feedCursorService.decode(cursor));
+        } else if (count == 0) {
             newsFeed = newsFeedRetrievalService.getNewsFeed(request.getRemoteUser());
         } else if (after == 0) {
             newsFeed = newsFeedRetrievalService.getNewsFeed(request.getRemoteUser(), count);
@@ -105,18 +112,12 @@ public class FeedController {
     public String apiTestAddPost(Model model, HttpServletRequest request, @RequestParam(value="content", required=true) String content) {
         NewsItem ni = new NewsItem(request.getRemoteUser(), new Date(), content);
         // Verify that this is not a duplicate submission.
-        List<NewsItem> latest = newsItemDao.read(request.getRemoteUser());
-        try {
-            if (latest.get(latest.size() - 1).getContent().equals(ni.getContent())) {
-                // TODO: Pass a message to the front-end that this post already exists.
-            } else {
-                newsItemDao.create(ni);
-            }
-        } catch (NullPointerException e) {
-            // This is the user's first post. Skip duplicate post validation.
-            newsItemDao.create(ni);
-        } catch (IndexOutOfBoundsException e) {
-            // This is the user's first post. Skip duplicate post validation.
+        // Posts come back newest first, so only the newest one is needed.
+        List<NewsItem> latest = newsItemDao.read(request.getRemoteUser(), 1);
+        if (!latest.isEmpty() && latest.get(0).getContent().equals(ni.getContent())) {
+            // TODO: Pass a message to the front-end that this post already exists.
+        } else {
+            // This may be the user's first post, in which case there is nothing to compare against.
             newsItemDao.create(ni);
         }
         return "redirect:/feed";
@@ -21,4 +21,10 @@ public class FollowController {
         relationshipDao.create(new Relationship(request.getRemoteUser(), username));
         return "redirect:/feed";
     }
+
+    @GetMapping("/api/v1/unfollow")
+    public String apiUnfollowUser(Model model, HttpServletRequest request, @RequestParam(required = true) String username) {
+        relationshipDao.delete(new Relationship(request.getRemoteUser(), username));
+        return "redirect:/feed";
+    }
 }
@@ -2,10 +2,20 @@ package com.envibe.envibe.dao;
 
 import com.envibe.envibe.model.CachedItem;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Repository;
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Data access object for CachedItems that are stored in a Redis-compatible datastore. Utilizes CRUD model.
@@ -22,15 +32,84 @@ public class CachedItemDao {
     public static final String PURPOSE_GENERAL_CACHE = "GENERAL";
 
     /**
-     * Global tag for cached items that are produced and consumed by the news feed service.
+     * Global tag for news feed caches that are produced and consumed by the news feed service. See {@link NewsFeedCacheDao}.
      */
     public static final String PURPOSE_NEWS_FEED_CACHE = "NEWSFEEDCACHE";
 
+    /**
+     * Global tag for news feed caches that are stored with {@link PackedFeedCodec} instead of as sorted sets. See {@link NewsFeedCacheDao}.
+     */
+    public static final String PURPOSE_NEWS_FEED_PACKED = "NEWSFEEDPACKED";
+
+    /**
+     * Global tag for the sorted set of users by the time they last read their news feed. Used to find dormant feeds. See {@link NewsFeedCacheDao}.
+     */
+    public static final String PURPOSE_NEWS_FEED_ACTIVITY = "NEWSFEEDACTIVITY";
+
+    /**
+     * Global tag for per-author indexes of recent posts that are merged into news feeds at read time. See {@link NewsFeedCacheDao}.
+     */
+    public static final String PURPOSE_NEWS_FEED_AUTHOR = "NEWSFEEDAUTHOR";
+
+    /**
+     * Global tag for the set of authors whose posts are pulled into news feeds at read time instead of pushed on write. See {@link NewsFeedCacheDao}.
+     */
+    public static final String PURPOSE_NEWS_FEED_PULL_AUTHORS = "NEWSFEEDPULLAUTHORS";
+
+    /**
+     * Global tag for the sorted set of deleted posts that may still be in news feeds. See {@link NewsFeedCacheDao}.
+     */
+    public static final String PURPOSE_NEWS_FEED_TOMBSTONES = "NEWSFEEDTOMBSTONES";
+
+    /**
+     * Global tag for the markers that keep a missing news feed from being rebuilt more than once at a time, keyed by username.
+     * See {@link com.envibe.envibe.service.NewsFeedRebuildService}.
+     */
+    public static final String PURPOSE_NEWS_FEED_REBUILD = "NEWSFEEDREBUILD";
+
+    /**
+     * Global tag for the markers that keep a news feed whose rebuild failed from being rebuilt again until the cooldown is over,
+     * keyed by username. See {@link com.envibe.envibe.service.NewsFeedRebuildService}.
+     */
+    public static final String PURPOSE_NEWS_FEED_REBUILD_COOLDOWN = "NEWSFEEDREBUILDCOOLDOWN";
+
+    /**
+     * Global tag for hydrated news feed entries, keyed by post ID. See {@link FeedEntryCacheDao}.
+     */
+    public static final String PURPOSE_FEED_ENTRY_CACHE = "FEEDENTRY";
+
+    /**
+     * Global tag for the display fields of post authors, keyed by username. See {@link FeedEntryCacheDao}.
+     */
+    public static final String PURPOSE_AUTHOR_CARD_CACHE = "AUTHORCARD";
+
+    /**
+     * Global tag for the set of users that a user follows, keyed by username. See {@link SocialGraphCacheDao}.
+     */
+    public static final String PURPOSE_FOLLOWING = "FOLLOWING";
+
+    /**
+     * Global tag for the set of users that follow a user, keyed by username. See {@link SocialGraphCacheDao}.
+     */
+    public static final String PURPOSE_FOLLOWERS = "FOLLOWERS";
+
+    /**
+     * Global tag for the cached first page of follow suggestions of a user, keyed by username. See {@link com.envibe.envibe.service.SuggestionService}.
+     */
+    public static final String PURPOSE_SUGGESTIONS = "SUGGESTIONS";
+
     /**
      * Global tag for cached items that need to be passed from frontend to threaded workers.
+     * @deprecated A single key can only hold one message at a time. Use {@link CachedItemDao#PURPOSE_NEWS_FEED_WORK_QUEUE} with {@link WorkQueueDao} instead.
      */
+    @Deprecated
     public static final String PURPOSE_NEWS_FEED_WORKER_PASSTHROUGH = "NEWSFEEDWORKERPASSTHROUGH";
 
+    /**
+     * Global tag for the durable queue of new posts that need to be added to follower news feeds. See {@link WorkQueueDao}.
+     */
+    public static final String PURPOSE_NEWS_FEED_WORK_QUEUE = "NEWSFEEDWORKQUEUE";
+
     /**
      * Global delimiter for payloads that store multiple values.
      */
@@ -38,12 +117,27 @@ public class CachedItemDao {
 
     public static final String TAG_SPLITTER = "|";
 
+    /**
+     * Reads and deletes a key in one atomic step. Same as GETDEL, which is only available on Redis 6.2 and newer.
+     * KEYS: tag. Returns the serialized item, or nil if it did not exist.
+     */
+    private static final RedisScript<CachedItem> scriptGetAndDelete = new DefaultRedisScript<>(
+            "local value = redis.call('GET', KEYS[1]) " +
+            "if value then redis.call('DEL', KEYS[1]) end " +
+            "return value", CachedItem.class);
+
     /**
      * Injected Redis connection object to run queries against. See {@link RedisTemplate}.
      */
     @Autowired
     private RedisTemplate<String, Object> redisTemplate;
 
+    /**
+     * Injected in-process cache for the purposes that are configured to use it. See {@link NearCache}.
+     */
+    @Autowired
+    private NearCache nearCache;
+
     /**
      * Creates a cached item using a generated tag.
      * @param cachedItem Item to store in the application-wide cache.
@@ -52,7 +146,9 @@ public class CachedItemDao {
         // Argument validation.
         Objects.requireNonNull(cachedItem, "Method argument cachedItem cannot be null");
         // Commit record to cache.
-        redisTemplate.opsForValue().set(generateTag(cachedItem), cachedItem);
+        String tag = generateTag(cachedItem);
+        redisTemplate.opsForValue().set(tag, cachedItem);
+        nearCache.invalidate(tag);
     }
 
     /**
@@ -63,38 +159,136 @@ public class CachedItemDao {
     public CachedItem read(@NotNull String tag) {
         // Argument validation.
         Objects.requireNonNull(tag, "Method argument tag cannot be null");
+        // Serve the record from process memory if its purpose is cached there.
+        boolean nearCached = nearCache.isCached(tag);
+        if (nearCached) {
+            CachedItem cachedItem = nearCache.get(tag);
+            if (cachedItem != null) return cachedItem;
+        }
         // Return record from memory.
         // TODO: Throw custom exception if item does not exist.
-        return (CachedItem)redisTemplate.opsForValue().get(tag);
+        CachedItem cachedItem = (CachedItem)redisTemplate.opsForValue().get(tag);
+        if (nearCached) nearCache.put(tag, cachedItem);
+        return cachedItem;
     }
 
     /**
-     * Finds a cache item with a given key and deletes the entry immediately before returning the found value. Reduces risk of duplicate threads
-     * or race conditions or deadlock.
+     * Finds many cache items in a single round trip.
+     * @param tags Access keys for the items. Usually follow the PURPOSE|USER schema. See {@link CachedItemDao#generateTag(String, String)}.
+     * @return Selected cache items in the same order as tags. Contains null for every item that does not exist.
+     */
+    public List<CachedItem> readAll(@NotNull List<String> tags) {
+        // Argument validation.
+        Objects.requireNonNull(tags, "Method argument tags cannot be null");
+        List<CachedItem> items = new ArrayList<>(tags.size());
+        // Serve what we can from process memory and remember which positions still need to be read from Redis.
+        List<Integer> remoteIndexes = new ArrayList<>();
+        List<String> remoteTags = new ArrayList<>();
+        for (String tag : tags) {
+            CachedItem cachedItem = nearCache.isCached(tag) ? nearCache.get(tag) : null;
+            if (cachedItem == null) {
+                remoteIndexes.add(items.size());
+                remoteTags.add(tag);
+            }
+            items.add(cachedItem);
+        }
+        if (remoteTags.isEmpty()) return items;
+        // MGET returns one value per key, with null for missing keys.
+        List<Object> values = redisTemplate.opsForValue().multiGet(remoteTags);
+        if (values == null) return items;
+        for (int i = 0; i < values.size(); i++) {
+            CachedItem cachedItem = (CachedItem)values.get(i);
+            items.set(remoteIndexes.get(i), cachedItem);
+            if (nearCache.isCached(remoteTags.get(i))) nearCache.put(remoteTags.get(i), cachedItem);
+        }
+        return items;
+    }
+
+    /**
+     * Finds a cache item with a given key and deletes the entry in the same atomic operation. If several workers race for the same
+     * item, exactly one of them receives it.
      * @param tag Access key for item. Usually follows the PURPOSE|USER schema. See {@link CachedItemDao#generateTag(String, String)}.
      * @return Selected cache item (if it exists). Is deleted before it is returned.
      */
     public CachedItem readAndDelete(@NotNull String tag) {
-        // No argument validation. Handled by the inner classes.
-        CachedItem item = this.read(tag);
-        // Immediately delete the tag so no objects are retrieved.
-        this.delete(tag);
-        return item;
+        // Argument validation.
+        Objects.requireNonNull(tag, "Method argument tag cannot be null");
+        // Run GET and DEL as one script so no other client can read the item in between.
+        CachedItem cachedItem = redisTemplate.execute(scriptGetAndDelete, valueSerializer(), cachedItemSerializer(), Collections.singletonList(tag));
+        nearCache.invalidate(tag);
+        return cachedItem;
+    }
+
+    /**
+     * Creates a cached item only if no item with the same tag exists. Can be used as a lock that expires on its own.
+     * @param cachedItem Item to store in the application-wide cache.
+     * @param timeout Time until the item expires.
+     * @param unit Unit of timeout.
+     * @return True if the item was created, false if the tag was already taken.
+     */
+    public boolean createIfAbsent(@NotNull CachedItem cachedItem, long timeout, @NotNull TimeUnit unit) {
+        // Argument validation.
+        Objects.requireNonNull(cachedItem, "Method argument cachedItem cannot be null");
+        // SET NX PX is a single atomic command.
+        String tag = generateTag(cachedItem);
+        boolean created = Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(tag, cachedItem, timeout, unit));
+        if (created) nearCache.invalidate(tag);
+        return created;
     }
 
     /**
-     * Updates the given cache item in the application-wide cache.
+     * Updates the given cache item in the application-wide cache. Overwrites the old record in a single command, so readers never see it missing.
      * @param cachedItem Valid CachedItem with updated payload. The purpose and user_tag fields must be the original values for the update to work.
      */
     public void update(@NotNull CachedItem cachedItem) {
         // Argument validation.
         Objects.requireNonNull(cachedItem, "Method argument cachedItem cannot be null");
-        // Delete old record from cache.
-        delete(generateTag(cachedItem));
-        // Commit new record to cache.
+        // Commit new record to cache. SET replaces the old record and clears any expiry.
         create(cachedItem);
     }
 
+    /**
+     * Updates the given cache item and sets its time-to-live in a single atomic command.
+     * @param cachedItem Valid CachedItem with updated payload. The purpose and user_tag fields must be the original values for the update to work.
+     * @param timeout Time until the item expires.
+     * @param unit Unit of timeout.
+     */
+    public void update(@NotNull CachedItem cachedItem, long timeout, @NotNull TimeUnit unit) {
+        // Argument validation.
+        Objects.requireNonNull(cachedItem, "Method argument cachedItem cannot be null");
+        // SET PX writes the value and the expiry together.
+        String tag = generateTag(cachedItem);
+        redisTemplate.opsForValue().set(tag, cachedItem, timeout, unit);
+        nearCache.invalidate(tag);
+    }
+
+    /**
+     * Creates or replaces many cache items with the same time-to-live. All writes are sent in a single pipeline.
+     * @param cachedItems Items to store in the application-wide cache.
+     * @param timeout Time until the items expire.
+     * @param unit Unit of timeout.
+     */
+    public void updateAll(@NotNull Collection<CachedItem> cachedItems, long timeout, @NotNull TimeUnit unit) {
+        // Argument validation.
+        Objects.requireNonNull(cachedItems, "Method argument cachedItems cannot be null");
+        if (cachedItems.isEmpty()) return;
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, Object> stringOperations = (RedisOperations<String, Object>)operations;
+                for (CachedItem cachedItem : cachedItems) {
+                    stringOperations.opsForValue().set(generateTag(cachedItem), cachedItem, timeout, unit);
+                }
+                // Results are collected by executePipelined, so the callback must return null.
+                return null;
+            }
+        });
+        for (CachedItem cachedItem : cachedItems) {
+            nearCache.invalidate(generateTag(cachedItem));
+        }
+    }
+
     /**
      * Removes the given cache item from the application-wide cache. Item must exist and contain the original purpose and user_tag values for the operation to be valid.
      * @param cachedItem Item to delete.
@@ -115,6 +309,39 @@ public class CachedItemDao {
         // Argument validation.
         Objects.requireNonNull(tag, "Method argument tag cannot be null");
         redisTemplate.delete(tag);
+        nearCache.invalidate(tag);
+    }
+
+    /**
+     * Removes many cache items from the application-wide cache in a single command.
+     * @param tags Access keys for the items. Usually follow the PURPOSE|USER schema. See {@link CachedItemDao#generateTag(String, String)}.
+     */
+    public void delete(@NotNull Collection<String> tags) {
+        // Argument validation.
+        Objects.requireNonNull(tags, "Method argument tags cannot be null");
+        if (tags.isEmpty()) return;
+        redisTemplate.delete(tags);
+        for (String tag : tags) {
+            nearCache.invalidate(tag);
+        }
+    }
+
+    /**
+     * Returns the serializer that the injected template uses for values.
+     * @return Value serializer of {@link CachedItemDao#redisTemplate}.
+     */
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<Object> valueSerializer() {
+        return (RedisSerializer<Object>)redisTemplate.getValueSerializer();
+    }
+
+    /**
+     * Returns the serializer that the injected template uses for values, typed for reading cache items.
+     * @return Value serializer of {@link CachedItemDao#redisTemplate}.
+     */
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<CachedItem> cachedItemSerializer() {
+        return (RedisSerializer<CachedItem>)redisTemplate.getValueSerializer();
     }
 
     /**
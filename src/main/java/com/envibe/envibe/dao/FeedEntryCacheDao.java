@@ -0,0 +1,159 @@
+package com.envibe.envibe.dao;
+
+import com.envibe.envibe.dto.AuthorDto;
+import com.envibe.envibe.dto.NewsFeedItemDto;
+import com.envibe.envibe.model.CachedItem;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Data access object for denormalized news feed entries and author display cards in the temporary datastore. Entries hold
+ * everything a client needs to render a post, so a page of the feed can be served with a single MGET. Entries and cards
+ * expire on their own, and are also deleted whenever the post or the author's profile is edited.
+ *
+ * @author ARMmaster17
+ */
+@Repository
+public class FeedEntryCacheDao {
+
+    /**
+     * Serializes payloads as JSON. Dates are stored as milliseconds since the epoch so they survive the round trip exactly.
+     */
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Date.class, (JsonSerializer<Date>) (date, type, context) -> new JsonPrimitive(date.getTime()))
+            .registerTypeAdapter(Date.class, (JsonDeserializer<Date>) (json, type, context) -> new Date(json.getAsLong()))
+            .create();
+
+    /**
+     * Injected data access object for items in the temporary datastore.
+     */
+    @Autowired
+    private CachedItemDao cachedItemDao;
+
+    /**
+     * Injected data access object for news feed caches. Used to find every cached entry of an author.
+     */
+    @Autowired
+    private NewsFeedCacheDao newsFeedCacheDao;
+
+    /**
+     * Time-to-live of cached entries and cards. Bounds how long an entry can outlive an edit that was missed.
+     */
+    @Value("${envibe.feed.entry-cache.ttl-seconds:3600}")
+    private long ttlSeconds;
+
+    /**
+     * Finds the cached entries of a page of posts in a single round trip.
+     * @param postIds Posts to look for.
+     * @return Entries in the same order as postIds. Contains null for every post that is not cached.
+     */
+    public List<NewsFeedItemDto> readEntries(@NotNull List<Long> postIds) {
+        Objects.requireNonNull(postIds, "Method argument postIds cannot be null");
+        List<String> tags = new ArrayList<>(postIds.size());
+        for (long post_id : postIds) {
+            tags.add(entryTag(post_id));
+        }
+        List<NewsFeedItemDto> entries = new ArrayList<>(postIds.size());
+        for (CachedItem cachedItem : cachedItemDao.readAll(tags)) {
+            entries.add(cachedItem == null ? null : gson.fromJson(cachedItem.getPayload(), NewsFeedItemDto.class));
+        }
+        return entries;
+    }
+
+    /**
+     * Caches hydrated entries, keyed by their post IDs.
+     * @param entries Entries to cache.
+     */
+    public void updateEntries(@NotNull Collection<NewsFeedItemDto> entries) {
+        Objects.requireNonNull(entries, "Method argument entries cannot be null");
+        List<CachedItem> cachedItems = new ArrayList<>(entries.size());
+        for (NewsFeedItemDto entry : entries) {
+            cachedItems.add(new CachedItem(CachedItemDao.PURPOSE_FEED_ENTRY_CACHE, Long.toString(entry.getPost_id()), gson.toJson(entry)));
+        }
+        cachedItemDao.updateAll(cachedItems, ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Finds the cached display cards of several authors in a single round trip.
+     * @param usernames Authors to look for. Duplicates are only looked up once.
+     * @return Map of username to display card. Authors that are not cached are left out.
+     */
+    public Map<String, AuthorDto> readAuthors(@NotNull Collection<String> usernames) {
+        Objects.requireNonNull(usernames, "Method argument usernames cannot be null");
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(usernames));
+        List<String> tags = new ArrayList<>(distinct.size());
+        for (String username : distinct) {
+            tags.add(cachedItemDao.generateTag(CachedItemDao.PURPOSE_AUTHOR_CARD_CACHE, username));
+        }
+        Map<String, AuthorDto> authors = new HashMap<>();
+        List<CachedItem> cachedItems = cachedItemDao.readAll(tags);
+        for (int i = 0; i < cachedItems.size(); i++) {
+            if (cachedItems.get(i) != null) {
+                authors.put(distinct.get(i), gson.fromJson(cachedItems.get(i).getPayload(), AuthorDto.class));
+            }
+        }
+        return authors;
+    }
+
+    /**
+     * Caches author display cards, keyed by username.
+     * @param authors Cards to cache.
+     */
+    public void updateAuthors(@NotNull Collection<AuthorDto> authors) {
+        Objects.requireNonNull(authors, "Method argument authors cannot be null");
+        List<CachedItem> cachedItems = new ArrayList<>(authors.size());
+        for (AuthorDto author : authors) {
+            cachedItems.add(new CachedItem(CachedItemDao.PURPOSE_AUTHOR_CARD_CACHE, author.getUsername(), gson.toJson(author)));
+        }
+        cachedItemDao.updateAll(cachedItems, ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Deletes the cached entry of a post. Must be called after the post is edited or deleted.
+     * @param post_id Post that changed.
+     */
+    public void invalidatePost(long post_id) {
+        cachedItemDao.delete(entryTag(post_id));
+    }
+
+    /**
+     * Deletes the cached display card of an author and the cached entries of their recent posts, since every entry holds a copy
+     * of the card. Must be called after the author's profile is edited. Entries older than the author index expire on their own.
+     * @param username Author that changed.
+     */
+    public void invalidateAuthor(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        List<String> tags = new ArrayList<>();
+        tags.add(cachedItemDao.generateTag(CachedItemDao.PURPOSE_AUTHOR_CARD_CACHE, username));
+        for (long post_id : newsFeedCacheDao.readAuthor(username)) {
+            tags.add(entryTag(post_id));
+        }
+        cachedItemDao.delete(tags);
+    }
+
+    /**
+     * Generates the Redis key of a cached entry.
+     * @param post_id Post that the entry belongs to.
+     * @return Key that follows the PURPOSE|ID schema.
+     */
+    private String entryTag(long post_id) {
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_FEED_ENTRY_CACHE, Long.toString(post_id));
+    }
+}
@@ -1,14 +1,20 @@
 package com.envibe.envibe.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 import javax.validation.constraints.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 import com.envibe.envibe.model.Relationship;
 import com.envibe.envibe.rowmapper.FriendRowMapper;
+import com.envibe.envibe.service.NewsFeedUpdateService;
 
 @Repository
 public class FriendDao {
@@ -16,19 +22,59 @@ public class FriendDao {
 	 /* injects JdbcTemplate into class*/
 	private JdbcTemplate jdbcTemplate;
 	
+	 @Autowired
+	 /* injects the service that updates the follower's news feed in the background after a follow or unfollow*/
+	private NewsFeedUpdateService newsFeedUpdateService;
+	
+	 @Autowired
+	 /* injects the cache that holds follow suggestions, so they can be dropped when someone follows or unfollows*/
+	private CachedItemDao cachedItemDao;
+	
+	 @Autowired
+	 /* injects the social graph cache, which is written through on every follow and unfollow*/
+	private SocialGraphCacheDao socialGraphCacheDao;
+	
 	final String queryCreate = "INSERT INTO user_relationship (user_name, user_friend) VALUES (?, ?)";
 	
-	final String queryRead = "SELECT * FROM user_relationship WHERE user_name = ?";
+	/*The lookups by user are static and package-private, so the query plan tests explain the SQL that actually runs.*/
+	static final String queryRead = "SELECT * FROM user_relationship WHERE user_name = ?";
+	
+	final String queryReadAllPrefix = "SELECT user_name, user_friend FROM user_relationship WHERE user_name IN (";
+	
+	static final String queryReadFollowersPage = "SELECT user_name FROM user_relationship WHERE user_friend = ? AND user_name > ? ORDER BY user_name LIMIT ?";
+	
+	static final String queryCountFollowers = "SELECT COUNT(*) FROM user_relationship WHERE user_friend = ?";
+	
+	static final String queryReadSuggestionsPage = "SELECT u.user_name FROM user_account u WHERE u.user_name > ? AND u.user_name <> ? " +
+			"AND NOT EXISTS (SELECT 1 FROM user_relationship r WHERE r.user_name = ? AND r.user_friend = u.user_name) " +
+			"ORDER BY u.user_name LIMIT ?";
+	
+	static final String queryReadMutualSuggestions = "SELECT f.user_friend FROM (SELECT user_friend FROM user_relationship WHERE user_name = ? LIMIT ?) s " +
+			"JOIN user_relationship f ON f.user_name = s.user_friend WHERE f.user_friend <> ? " +
+			"AND NOT EXISTS (SELECT 1 FROM user_relationship r WHERE r.user_name = ? AND r.user_friend = f.user_friend) " +
+			"GROUP BY f.user_friend ORDER BY COUNT(*) DESC, f.user_friend LIMIT ?";
+	
+	/*Number of followed users whose follows are counted for suggestions, so users that follow many accounts stay cheap to serve.*/
+	static final int suggestionSampleSize = 200;
 	
 	final String queryUpdate = "UPDATE user_relationship SET user_name = ?, user_friend = ? WHERE user_name = ?";
 	
-	final String queryDelete = "DELETE FROM user_relationship WHERE user_name = ?";
+	final String queryDelete = "DELETE FROM user_relationship WHERE user_name = ? AND user_friend = ?";
 	
 	/*General CRUD format, update not actually necessary but for "Future Features" and the possibility of needing it in case users update their userNames than its just there*/
 	
 	public void create(Relationship relation) {
         Objects.requireNonNull(relation, "Method argument relation cannot be null");
-        jdbcTemplate.update(queryCreate, relation.getUserName(), relation.getUserFriend());
+        try {
+            jdbcTemplate.update(queryCreate, relation.getUserName(), relation.getUserFriend());
+        } catch (DuplicateKeyException e) {
+            // Already following, so the news feed already has the followed user's posts.
+            return;
+        }
+        socialGraphCacheDao.addRelationship(relation.getUserName(), relation.getUserFriend());
+        invalidateSuggestions(relation.getUserName());
+        // Merge the recent posts of the followed user into the follower's news feed in the background.
+        newsFeedUpdateService.triggerFollowWorker(relation.getUserName(), Collections.singletonList(relation.getUserFriend()));
     }
 	
 	/*Creates a list of objects of Relationship.*/
@@ -41,15 +87,83 @@ public class FriendDao {
         }
     }
 	
+	/*Reads the relationships of many users in one query. Used by bulk jobs that would otherwise run one query per user.*/
+	public List<Relationship> readAll(@NotNull Collection<String> userNames) {
+        Objects.requireNonNull(userNames, "Method argument userNames cannot be null");
+        if (userNames.isEmpty()) return new ArrayList<>();
+        String placeholders = String.join(",", Collections.nCopies(userNames.size(), "?"));
+        return jdbcTemplate.query(queryReadAllPrefix + placeholders + ")", new FriendRowMapper(), userNames.toArray());
+    }
+	
+	/*Streams the usernames of everyone who follows userFriend, chunkSize at a time, so accounts with millions of followers are never
+	  held in memory at once. Pages are keyed on the last username of the previous chunk and served by the (user_friend, user_name)
+	  index, so every chunk costs the same no matter how deep into the list it is.*/
+	public void readFollowers(@NotNull String userFriend, int chunkSize, @NotNull Consumer<List<String>> consumer) {
+        Objects.requireNonNull(userFriend, "Method argument userFriend cannot be null");
+        Objects.requireNonNull(consumer, "Method argument consumer cannot be null");
+        String after = "";
+        while (true) {
+            List<String> chunk = jdbcTemplate.queryForList(queryReadFollowersPage, String.class, userFriend, after, chunkSize);
+            if (chunk.isEmpty()) return;
+            consumer.accept(chunk);
+            // A short chunk is the last one, so skip the query that would come back empty.
+            if (chunk.size() < chunkSize) return;
+            after = chunk.get(chunk.size() - 1);
+        }
+    }
+	
+	/*Counts the followers of userFriend straight from the index. Use FollowerCountService for the cached count.*/
+	public long countFollowers(@NotNull String userFriend) {
+        Objects.requireNonNull(userFriend, "Method argument userFriend cannot be null");
+        return jdbcTemplate.queryForObject(queryCountFollowers, Long.class, userFriend);
+    }
+	
+	/*Reads up to limit users that userName does not follow yet, leaving out userName itself, most relevant first. Users followed
+	  by the most of the accounts that userName follows come first, counted over the primary key of user_relationship. The rest of
+	  the list is filled in username order, so users that follow nobody yet still get suggestions.*/
+	public List<String> readSuggestions(@NotNull String userName, int limit) {
+        Objects.requireNonNull(userName, "Method argument userName cannot be null");
+        List<String> suggestions = new ArrayList<>(jdbcTemplate.queryForList(queryReadMutualSuggestions, String.class,
+                userName, suggestionSampleSize, userName, userName, limit));
+        String after = "";
+        while (suggestions.size() < limit) {
+            List<String> page = readSuggestionsPage(userName, after, limit);
+            for (String suggestion : page) {
+                if (suggestions.size() < limit && !suggestions.contains(suggestion)) suggestions.add(suggestion);
+            }
+            if (page.size() < limit) break;
+            after = page.get(page.size() - 1);
+        }
+        return suggestions;
+    }
+	
+	/*Reads one page of users that userName does not follow yet in username order. The anti-join walks user_account in primary key
+	  order and probes the user_relationship primary key for every row, so a page costs its size plus the number of followed users
+	  skipped on the way instead of a scan of every user. Pages are keyed on the last username of the previous page.*/
+	private List<String> readSuggestionsPage(String userName, String after, int limit) {
+        return jdbcTemplate.queryForList(queryReadSuggestionsPage, String.class, after, userName, userName, limit);
+    }
+	
 	/*Unused but could be eventually.*/
 	public void update(Relationship relation) {
         Objects.requireNonNull(relation, "Method argument user cannot be null");
         jdbcTemplate.update(queryUpdate, relation.getUserName(), relation.getUserFriend());
     }
 	
-	/*Used to delete record from database, call a relationship object and than delete it in query.*/
+	/*Used to delete record from database, call a relationship object and than delete it in query. Only the relationship between these two users is deleted.*/
 	public void delete(Relationship relation) {
         Objects.requireNonNull(relation, "Method argument relation cannot be null");
-        jdbcTemplate.update(queryDelete, relation.getUserName());
+        int deleted = jdbcTemplate.update(queryDelete, relation.getUserName(), relation.getUserFriend());
+        // Remove the posts of the unfollowed user from the follower's news feed in the background.
+        if (deleted > 0) {
+            socialGraphCacheDao.removeRelationship(relation.getUserName(), relation.getUserFriend());
+            invalidateSuggestions(relation.getUserName());
+            newsFeedUpdateService.triggerUnfollowWorker(relation.getUserName(), Collections.singletonList(relation.getUserFriend()));
+        }
+    }
+	
+	/*Drops the cached follow suggestions of a user after they followed or unfollowed someone.*/
+	private void invalidateSuggestions(String userName) {
+        cachedItemDao.delete(cachedItemDao.generateTag(CachedItemDao.PURPOSE_SUGGESTIONS, userName));
     }
 }
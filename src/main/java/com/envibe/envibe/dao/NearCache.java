@@ -0,0 +1,279 @@
+package com.envibe.envibe.dao;
+
+import com.envibe.envibe.model.CachedItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.validation.constraints.NotNull;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process cache that sits in front of {@link CachedItemDao} for the purposes listed in envibe.cache.near.purposes.
+ * Entries are evicted least recently used first once the cache is full, and expire after a fixed time-to-live. Every write
+ * through {@link CachedItemDao} publishes the changed tag on a Redis channel so that the near caches of other application
+ * instances drop their copy. Disabled when no purposes are listed.
+ *
+ * @author ARMmaster17
+ */
+@Component
+public class NearCache {
+
+    /**
+     * Redis pub/sub channel that carries invalidated tags between application instances.
+     */
+    public static final String INVALIDATION_CHANNEL = "NEARCACHE|INVALIDATE";
+
+    /**
+     * Separates the sender ID from the tag in invalidation messages.
+     */
+    private static final String MESSAGE_SPLITTER = " ";
+
+    /**
+     * Logger for invalidation messages that could not be handled.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(NearCache.class);
+
+    /**
+     * Injected factory for the connection that listens for invalidation messages.
+     */
+    @Autowired
+    private RedisConnectionFactory redisConnectionFactory;
+
+    /**
+     * Injected Redis connection object used to publish invalidation messages.
+     */
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Comma separated list of purposes that are cached in process. See the static fields of {@link CachedItemDao}.
+     */
+    @Value("${envibe.cache.near.purposes:}")
+    private String purposeList;
+
+    /**
+     * Maximum number of entries held in process.
+     */
+    @Value("${envibe.cache.near.max-size:10000}")
+    private int maxSize;
+
+    /**
+     * Time in milliseconds after which an entry is reloaded from Redis even if no invalidation was received.
+     */
+    @Value("${envibe.cache.near.ttl-millis:30000}")
+    private long ttlMillis;
+
+    /**
+     * Purposes parsed from purposeList.
+     */
+    private Set<String> purposes = new HashSet<>();
+
+    /**
+     * Random ID of this application instance, used to ignore our own invalidation messages.
+     */
+    private final String instanceId = UUID.randomUUID().toString();
+
+    /**
+     * Cached entries in access order, so the eldest entry is the least recently used one.
+     */
+    private LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Listens for invalidation messages from other instances. Only created when the cache is enabled.
+     */
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * Number of reads that were served from process memory.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of reads of cached purposes that had to go to Redis.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of entries dropped because the cache was full or the entry had expired.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Number of entries dropped because the item was written, locally or by another instance.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Parses the configuration and, if any purposes are enabled, subscribes to the invalidation channel.
+     */
+    @PostConstruct
+    public void initialize() {
+        for (String purpose : purposeList.split(",")) {
+            if (!purpose.trim().isEmpty()) purposes.add(purpose.trim());
+        }
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                // Drop the least recently used entry once the cache is over its maximum size.
+                if (size() <= maxSize) return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+        if (!isEnabled()) return;
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(redisConnectionFactory);
+        listenerContainer.addMessageListener((message, pattern) -> onInvalidation(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(INVALIDATION_CHANNEL));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+    }
+
+    /**
+     * Stops listening for invalidation messages.
+     * @throws Exception If the listener could not be shut down cleanly.
+     */
+    @PreDestroy
+    public void dismantle() throws Exception {
+        if (listenerContainer != null) listenerContainer.destroy();
+    }
+
+    /**
+     * Checks if any purpose is cached in process.
+     * @return True if at least one purpose is enabled.
+     */
+    public boolean isEnabled() {
+        return !purposes.isEmpty();
+    }
+
+    /**
+     * Checks if items with the given tag are cached in process.
+     * @param tag Access key that follows the PURPOSE|USER schema.
+     * @return True if the purpose of the tag is enabled.
+     */
+    public boolean isCached(@NotNull String tag) {
+        if (!isEnabled()) return false;
+        int split = tag.indexOf(CachedItemDao.TAG_SPLITTER);
+        return split > 0 && purposes.contains(tag.substring(0, split));
+    }
+
+    /**
+     * Returns a copy of the cached item with the given tag.
+     * @param tag Access key that follows the PURPOSE|USER schema.
+     * @return Copy of the item, or null if it is not cached or has expired.
+     */
+    public synchronized CachedItem get(@NotNull String tag) {
+        Entry entry = entries.get(tag);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(tag);
+            evictions.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(entry.item);
+    }
+
+    /**
+     * Stores a copy of an item that was just read from Redis.
+     * @param tag Access key that follows the PURPOSE|USER schema.
+     * @param item Item to cache. Null values are not cached.
+     */
+    public synchronized void put(@NotNull String tag, CachedItem item) {
+        if (item == null) return;
+        entries.put(tag, new Entry(copy(item), System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Drops the local copy of an item and tells every other instance to drop theirs. Must be called after every write to Redis.
+     * @param tag Access key that follows the PURPOSE|USER schema.
+     */
+    public void invalidate(@NotNull String tag) {
+        Objects.requireNonNull(tag, "Method argument tag cannot be null");
+        if (!isCached(tag)) return;
+        invalidateLocal(tag);
+        stringRedisTemplate.convertAndSend(INVALIDATION_CHANNEL, instanceId + MESSAGE_SPLITTER + tag);
+    }
+
+    /**
+     * Returns runtime statistics of the near cache.
+     * @return Map of statistic names to values.
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", isEnabled());
+        statistics.put("purposes", purposes);
+        statistics.put("size", entries.size());
+        statistics.put("maxSize", maxSize);
+        statistics.put("hits", hits.get());
+        statistics.put("misses", misses.get());
+        statistics.put("evictions", evictions.get());
+        statistics.put("invalidations", invalidations.get());
+        return statistics;
+    }
+
+    /**
+     * Handles an invalidation message published by any instance.
+     * @param message Sender ID and tag.
+     */
+    private void onInvalidation(String message) {
+        String[] parts = message.split(MESSAGE_SPLITTER, 2);
+        if (parts.length != 2) {
+            logger.warn("Ignoring malformed near cache invalidation message: {}", message);
+            return;
+        }
+        // Our own writes already dropped the local copy.
+        if (parts[0].equals(instanceId)) return;
+        invalidateLocal(parts[1]);
+    }
+
+    /**
+     * Drops the local copy of an item.
+     * @param tag Access key that follows the PURPOSE|USER schema.
+     */
+    private synchronized void invalidateLocal(String tag) {
+        if (entries.remove(tag) != null) invalidations.incrementAndGet();
+    }
+
+    /**
+     * Copies an item so that callers cannot change the cached instance.
+     * @param item Item to copy.
+     * @return New item with the same fields.
+     */
+    private static CachedItem copy(CachedItem item) {
+        return new CachedItem(item.getPurpose(), item.getUserTag(), item.getPayload());
+    }
+
+    /**
+     * Cached item with the time it expires at.
+     */
+    private static class Entry {
+        private final CachedItem item;
+        private final long expiresAt;
+
+        private Entry(CachedItem item, long expiresAt) {
+            this.item = item;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,932 @@
+package com.envibe.envibe.dao;
+
+import com.envibe.envibe.dto.FeedCursor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Repository;
+
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Data access object for news feed caches that are stored as Redis sorted sets. Each feed is keyed by the PURPOSE|USER schema,
+ * its members are post IDs, and its scores are the post creation times, so the newest post always has the highest score.
+ * Every author also has an index of their own recent posts in the same format. Posts by authors with too many followers to
+ * fan out are not pushed into feeds, and are merged in from the author index when a feed is read instead.
+ * New posts are only pushed into feeds that exist or are being rebuilt. A feed that went missing is left missing until the
+ * next read rebuilds all of it, instead of being recreated with only the posts made since.
+ * Feeds can also be stored with {@link PackedFeedCodec}, which takes a fraction of the memory of a sorted set. Packed feeds are
+ * kept in arrival order and page by post ID, so posts whose fan-out finishes out of order may be shown slightly out of order.
+ *
+ * @author ARMmaster17
+ */
+@Repository
+public class NewsFeedCacheDao {
+
+    /**
+     * Special value of after that requests a page from the top of the feed.
+     */
+    public static final int FROM_BEGINNING = -1;
+
+    /**
+     * Number of keys that SCAN is asked to return per call.
+     */
+    private static final int SCAN_COUNT = 500;
+
+    /**
+     * Number of times a packed feed rebuild or removal is retried when the feed changes underneath it.
+     */
+    private static final int REBUILD_ATTEMPTS = 3;
+
+    /**
+     * Adds a post to a feed, then drops the oldest posts until the feed is at its maximum length.
+     * KEYS: feed. ARGV: score, post ID, maximum length. Returns the number of trimmed posts.
+     */
+    private static final RedisScript<Long> scriptPush = new DefaultRedisScript<>(
+            "redis.call('ZADD', KEYS[1], ARGV[1], ARGV[2]) " +
+            "return redis.call('ZREMRANGEBYRANK', KEYS[1], 0, -tonumber(ARGV[3]) - 1)", Long.class);
+
+    /**
+     * Adds a post to every given feed that exists or is being rebuilt, then drops the oldest posts of each until it is at its
+     * maximum length. Other feeds are skipped, so a missing feed is not recreated with a single post.
+     * KEYS: feeds, then the rebuild marker of every feed in the same order. ARGV: score, post ID, maximum length. Returns 0.
+     */
+    private static final RedisScript<Long> scriptPushIfPresent = new DefaultRedisScript<>(
+            "local n = #KEYS / 2 " +
+            "for i = 1, n do " +
+                "if redis.call('EXISTS', KEYS[i]) == 1 or redis.call('EXISTS', KEYS[n + i]) == 1 then " +
+                    "redis.call('ZADD', KEYS[i], ARGV[1], ARGV[2]) " +
+                    "redis.call('ZREMRANGEBYRANK', KEYS[i], 0, -tonumber(ARGV[3]) - 1) " +
+                "end " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * Returns a page of posts, newest first, merged from one or more feeds. The page starts right below a position given as a
+     * score and post ID, which is found with ZREVRANGEBYSCORE in O(log n) no matter how deep the page is. The position does not
+     * need to be in any of the feeds, so pages stay stable while posts are added to or trimmed from the feeds. Posts with the
+     * same score are ordered by member, the same way ZREVRANGE orders them. If only a post ID is given, its score is looked up
+     * in the feeds, and the page starts from the top if the post is not in any of them. Deleted posts that are still waiting
+     * to be retracted are skipped. Each feed is read one page size deep first, and twice as deep again whenever skipped posts
+     * leave the page short, until the page is full or every feed has run out. A feed that filled its read may hold posts past
+     * it that belong before the tail of the merge, so only the first fetch posts of the merge are used while any feed did.
+     * KEYS: tombstones, then feeds. ARGV: post ID to start after (empty for the top), page size, score to start after (empty
+     * to look it up). Returns post IDs and their scores, alternating.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> scriptReadPage = new DefaultRedisScript<>(
+            "local after = ARGV[1] " +
+            "local count = tonumber(ARGV[2]) " +
+            "local hasTombstones = redis.call('ZCARD', KEYS[1]) > 0 " +
+            "local afterScore = nil " +
+            "if ARGV[3] ~= '' then " +
+                "afterScore = ARGV[3] " +
+            "elseif after ~= '' then " +
+                "for i = 2, #KEYS do " +
+                    "afterScore = redis.call('ZSCORE', KEYS[i], after) " +
+                    "if afterScore then break end " +
+                "end " +
+            "end " +
+            "local fetch = count " +
+            "while true do " +
+                "local items = {} " +
+                "local more = false " +
+                "for i = 2, #KEYS do " +
+                    "local page " +
+                    "if afterScore then " +
+                        "page = redis.call('ZREVRANGEBYSCORE', KEYS[i], '(' .. afterScore, '-inf', 'WITHSCORES', 'LIMIT', 0, fetch) " +
+                        "local tied = redis.call('ZREVRANGEBYSCORE', KEYS[i], afterScore, afterScore, 'WITHSCORES') " +
+                        "for j = 1, #tied, 2 do " +
+                            "if tied[j] < after then table.insert(items, { tied[j], tied[j + 1] }) end " +
+                        "end " +
+                    "else " +
+                        "page = redis.call('ZREVRANGE', KEYS[i], 0, fetch - 1, 'WITHSCORES') " +
+                    "end " +
+                    "if #page == fetch * 2 then more = true end " +
+                    "for j = 1, #page, 2 do table.insert(items, { page[j], page[j + 1] }) end " +
+                "end " +
+                "table.sort(items, function(a, b) " +
+                    "local x, y = tonumber(a[2]), tonumber(b[2]) " +
+                    "if x ~= y then return x > y end " +
+                    "return a[1] > b[1] " +
+                "end) " +
+                "local limit = #items " +
+                "if more and limit > fetch then limit = fetch end " +
+                "local result = {} " +
+                "local seen = {} " +
+                "for i = 1, limit do " +
+                    "if #result >= count * 2 then break end " +
+                    "local member = items[i][1] " +
+                    "if not seen[member] then " +
+                        "seen[member] = true " +
+                        "if not hasTombstones or not redis.call('ZSCORE', KEYS[1], member) then " +
+                            "table.insert(result, member) " +
+                            "table.insert(result, items[i][2]) " +
+                        "end " +
+                    "end " +
+                "end " +
+                "if #result >= count * 2 or not more then return result end " +
+                "fetch = fetch * 2 " +
+            "end", List.class);
+
+    /**
+     * Returns the given post IDs that are not tombstoned, in the same order.
+     * KEYS: tombstones. ARGV: maximum number of post IDs to return, then post IDs.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> scriptFilterTombstones = new DefaultRedisScript<>(
+            "local count = tonumber(ARGV[1]) " +
+            "local result = {} " +
+            "for i = 2, #ARGV do " +
+                "if #result >= count then break end " +
+                "if not redis.call('ZSCORE', KEYS[1], ARGV[i]) then table.insert(result, ARGV[i]) end " +
+            "end " +
+            "return result", List.class);
+
+    /**
+     * Adds a post to every given packed feed by rewriting the header and appending one zigzag varint. See {@link PackedFeedCodec}.
+     * Feeds that neither exist nor are being rebuilt are skipped.
+     * KEYS: feeds, then the rebuild marker of every feed in the same order. ARGV: post ID, maximum length. Returns the position
+     * in KEYS (1-based) of every feed that has grown past twice its maximum length and needs to be compacted.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> scriptPackedPush = new DefaultRedisScript<>(
+            "local id = tonumber(ARGV[1]) " +
+            "local limit = 2 * tonumber(ARGV[2]) " +
+            "local overflow = {} " +
+            "local n = #KEYS / 2 " +
+            "for i = 1, n do " +
+                "local header = redis.call('GETRANGE', KEYS[i], 0, " + (PackedFeedCodec.HEADER_SIZE - 1) + ") " +
+                "if #header == " + PackedFeedCodec.HEADER_SIZE + " or redis.call('EXISTS', KEYS[n + i]) == 1 then " +
+                    "local newest, count = 0, 0 " +
+                    "if #header == " + PackedFeedCodec.HEADER_SIZE + " then newest, count = struct.unpack('>i8i4', header) end " +
+                    "local delta = id - newest " +
+                    "local z = delta * 2 " +
+                    "if delta < 0 then z = -delta * 2 - 1 end " +
+                    "local bytes = {} " +
+                    "while z >= 128 do " +
+                        "bytes[#bytes + 1] = string.char(z % 128 + 128) " +
+                        "z = math.floor(z / 128) " +
+                    "end " +
+                    "bytes[#bytes + 1] = string.char(z) " +
+                    "if count == 0 then " +
+                        "redis.call('SET', KEYS[i], struct.pack('>i8i4', id, 1) .. table.concat(bytes)) " +
+                    "else " +
+                        "redis.call('SETRANGE', KEYS[i], 0, struct.pack('>i8i4', id, count + 1)) " +
+                        "redis.call('APPEND', KEYS[i], table.concat(bytes)) " +
+                    "end " +
+                    "if count + 1 > limit then overflow[#overflow + 1] = i end " +
+                "end " +
+            "end " +
+            "return overflow", List.class);
+
+    /**
+     * Deletes a feed whose rebuild failed and turns its rebuild marker into a cooldown marker. RENAME keeps the time-to-live,
+     * so the feed is still not rebuilt again before the cooldown is over, but fan-out no longer writes into it meanwhile.
+     * KEYS: feed, rebuild marker, cooldown marker. Returns 0.
+     */
+    private static final RedisScript<Long> scriptAbandonRebuild = new DefaultRedisScript<>(
+            "redis.call('DEL', KEYS[1]) " +
+            "if redis.call('EXISTS', KEYS[2]) == 1 then redis.call('RENAME', KEYS[2], KEYS[3]) end " +
+            "return 0", Long.class);
+
+    /**
+     * Replaces a packed feed only if nobody appended to it since it was read.
+     * KEYS: feed. ARGV: value that was read, replacement. Returns 1 if the feed was replaced.
+     */
+    private static final byte[] scriptPackedReplace = ("if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end " +
+            "redis.call('SET', KEYS[1], ARGV[2]) " +
+            "return 1").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Injected Redis connection object for plain String structures. See {@link StringRedisTemplate}.
+     */
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Injected data access object used to generate tags that follow the PURPOSE|USER schema.
+     */
+    @Autowired
+    private CachedItemDao cachedItemDao;
+
+    /**
+     * Maximum number of posts kept in a single feed. Older posts are trimmed on write.
+     */
+    @Value("${envibe.feed.max-length:500}")
+    private int maxLength;
+
+    /**
+     * Maximum number of posts kept in a single author index. Older posts are trimmed on write.
+     */
+    @Value("${envibe.feed.author-index.max-length:500}")
+    private int authorMaxLength;
+
+    /**
+     * Number of feeds written per pipelined round trip by {@link NewsFeedCacheDao#pushAll(Collection, long, long)}.
+     */
+    @Value("${envibe.feed.fanout.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * Storage format of feeds. Either zset or packed. Author indexes are always sorted sets.
+     */
+    @Value("${envibe.feed.storage:zset}")
+    private String storage;
+
+    /**
+     * Adds a post to the top of a user's feed and trims the feed to its maximum length in a single round trip. Skipped if the
+     * feed is missing and not being rebuilt.
+     * @param username User that owns the feed.
+     * @param post_id Post to add.
+     * @param score Creation time of the post in milliseconds since the epoch.
+     */
+    public void push(@NotNull String username, long post_id, long score) {
+        pushBatch(Collections.singletonList(username), Long.toString(post_id), score);
+    }
+
+    /**
+     * Adds a post to the index of recent posts by its author. The index is trimmed to the same maximum length as a feed.
+     * @param author User that created the post.
+     * @param post_id Post to add.
+     * @param score Creation time of the post in milliseconds since the epoch.
+     */
+    public void pushAuthor(@NotNull String author, long post_id, long score) {
+        stringRedisTemplate.execute(scriptPush, Collections.singletonList(authorTag(author)),
+                Long.toString(score), Long.toString(post_id), Integer.toString(authorMaxLength));
+    }
+
+    /**
+     * Returns every post ID in an author's index of recent posts.
+     * @param author User that created the posts.
+     * @return Post IDs, newest first. Empty if the author has no index.
+     */
+    public List<Long> readAuthor(@NotNull String author) {
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(authorTag(author), 0, -1);
+        return toPostIds(members == null ? null : new ArrayList<>(members));
+    }
+
+    /**
+     * Switches an author to pull delivery. Their new posts are no longer pushed into feeds, and are merged in from their
+     * author index at read time instead. Authors are never switched back, since posts they made in pull mode only exist in
+     * their author index.
+     * @param author User to switch.
+     */
+    public void addPullAuthor(@NotNull String author) {
+        Objects.requireNonNull(author, "Method argument author cannot be null");
+        stringRedisTemplate.opsForSet().add(pullAuthorsTag(), author);
+    }
+
+    /**
+     * Checks if an author has been switched to pull delivery.
+     * @param author User to check.
+     * @return True if the author's posts are merged in at read time.
+     */
+    public boolean isPullAuthor(@NotNull String author) {
+        Objects.requireNonNull(author, "Method argument author cannot be null");
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(pullAuthorsTag(), author));
+    }
+
+    /**
+     * Returns every author that has been switched to pull delivery. The set only holds the accounts with the most followers,
+     * so it stays small.
+     * @return Usernames of pull authors.
+     */
+    public Set<String> getPullAuthors() {
+        Set<String> authors = stringRedisTemplate.opsForSet().members(pullAuthorsTag());
+        return authors == null ? Collections.emptySet() : authors;
+    }
+
+    /**
+     * Adds a post to the top of many feeds at once. Writes are pipelined in batches, so the cost is one round trip per batch
+     * instead of one per feed. Each feed is still trimmed to its maximum length. Feeds that are missing and not being rebuilt
+     * are skipped.
+     * @param usernames Users that own the feeds.
+     * @param post_id Post to add.
+     * @param score Creation time of the post in milliseconds since the epoch.
+     */
+    public void pushAll(@NotNull Collection<String> usernames, long post_id, long score) {
+        Objects.requireNonNull(usernames, "Method argument usernames cannot be null");
+        String member = Long.toString(post_id);
+        List<String> batch = new ArrayList<>(Math.min(usernames.size(), batchSize));
+        for (String username : usernames) {
+            batch.add(username);
+            // Flush the batch once it is full.
+            if (batch.size() >= batchSize) {
+                pushBatch(batch, member, score);
+                batch.clear();
+            }
+        }
+        // Flush whatever is left over.
+        if (!batch.isEmpty()) pushBatch(batch, member, score);
+    }
+
+    /**
+     * Reads a page from a user's feed merged with the indexes of the given authors, newest first, starting after a post ID.
+     * Kept for clients that page by post ID. See {@link NewsFeedCacheDao#read(String, Collection, FeedCursor, int)}.
+     * @param username User that owns the feed.
+     * @param authors Pull authors followed by the user. See {@link NewsFeedCacheDao#getPullAuthors()}. May be empty.
+     * @param after Last post_id received by the client, or {@link NewsFeedCacheDao#FROM_BEGINNING}.
+     * @param count Number of posts to return.
+     * @return Positions of up to count posts. Empty if the feed does not exist.
+     */
+    public List<FeedCursor> read(@NotNull String username, @NotNull Collection<String> authors, long after, int count) {
+        // Packed feeds are sorted by post ID, so the post ID is all the position there is.
+        if (isPacked()) return read(username, authors, after == FROM_BEGINNING ? null : new FeedCursor(after, after), count);
+        return readPage(username, authors, after == FROM_BEGINNING ? "" : Long.toString(after), "", count);
+    }
+
+    /**
+     * Reads a page from a user's feed merged with the indexes of the given authors, newest first, starting after a cursor.
+     * Costs O(log n + count) per feed in Redis, and the page does not shift when new posts are added to the top of the feed.
+     * @param username User that owns the feed.
+     * @param authors Pull authors followed by the user. See {@link NewsFeedCacheDao#getPullAuthors()}. May be empty.
+     * @param cursor Position of the last post received by the client, or null for the top of the feed.
+     * @param count Number of posts to return.
+     * @return Positions of up to count posts. Empty if the feed does not exist.
+     */
+    public List<FeedCursor> read(@NotNull String username, @NotNull Collection<String> authors, FeedCursor cursor, int count) {
+        Objects.requireNonNull(authors, "Method argument authors cannot be null");
+        if (isPacked()) return readMergedPacked(username, authors, cursor == null ? FROM_BEGINNING : cursor.getPost_id(), count);
+        if (cursor == null) return readPage(username, authors, "", "", count);
+        return readPage(username, authors, Long.toString(cursor.getPost_id()), Long.toString(cursor.getScore()), count);
+    }
+
+    /**
+     * Runs the paging script over a user's feed and the indexes of the given authors.
+     * @param username User that owns the feed.
+     * @param authors Pull authors followed by the user.
+     * @param after Post ID to start after, or empty for the top.
+     * @param afterScore Score to start after, or empty to look it up from after.
+     * @param count Number of posts to return.
+     * @return Positions of up to count posts.
+     */
+    private List<FeedCursor> readPage(String username, Collection<String> authors, String after, String afterScore, int count) {
+        // Tombstones come first, then the user's own feed, followed by the index of every pull author.
+        List<String> keys = new ArrayList<>(authors.size() + 2);
+        keys.add(tombstonesTag());
+        keys.add(tag(username));
+        for (String author : authors) {
+            keys.add(authorTag(author));
+        }
+        @SuppressWarnings("unchecked")
+        List<String> page = stringRedisTemplate.execute(scriptReadPage, keys, after, Integer.toString(count), afterScore);
+        List<FeedCursor> positions = new ArrayList<>();
+        if (page == null) return positions;
+        for (int i = 0; i + 1 < page.size(); i += 2) {
+            // Scores come back in Redis' double notation, which parses exactly for millisecond timestamps.
+            positions.add(new FeedCursor((long) Double.parseDouble(page.get(i + 1)), Long.parseLong(page.get(i))));
+        }
+        return positions;
+    }
+
+    /**
+     * Adds a post to every feed in a batch that exists or is being rebuilt with a single script call.
+     * @param usernames Users that own the feeds.
+     * @param member Post ID to add.
+     * @param score Creation time of the post.
+     */
+    private void pushBatch(List<String> usernames, String member, long score) {
+        // Feeds come first, followed by the rebuild marker of every feed in the same order.
+        List<String> keys = new ArrayList<>(usernames.size() * 2);
+        for (String username : usernames) {
+            keys.add(isPacked() ? packedTag(username) : tag(username));
+        }
+        for (String username : usernames) {
+            keys.add(rebuildMarkerTag(username));
+        }
+        if (isPacked()) {
+            pushPackedBatch(keys, member);
+            return;
+        }
+        stringRedisTemplate.execute(scriptPushIfPresent, keys, Long.toString(score), member, Integer.toString(maxLength));
+    }
+
+    /**
+     * Checks if a user's feed is in the datastore. A feed that was never built, or that was lost to eviction or a restart,
+     * reads the same as an empty one, so this is the only way to tell them apart.
+     * @param username User that owns the feed.
+     * @return True if the feed exists.
+     */
+    public boolean exists(@NotNull String username) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(isPacked() ? packedTag(username) : tag(username)));
+    }
+
+    /**
+     * Fills a user's feed with posts loaded from the persistent datastore. The posts are merged with whatever the feed already
+     * holds instead of replacing it, so posts that were fanned out while the feed was being rebuilt are kept.
+     * @param username User that owns the feed.
+     * @param positions Posts to add, each with its creation time in milliseconds since the epoch as the score.
+     */
+    public void rebuild(@NotNull String username, @NotNull List<FeedCursor> positions) {
+        Objects.requireNonNull(positions, "Method argument positions cannot be null");
+        rebuildAll(Collections.singletonMap(username, positions));
+    }
+
+    /**
+     * Fills many feeds at once. Sorted set feeds are written in a single pipeline. See {@link NewsFeedCacheDao#rebuild(String, List)}.
+     * Every feed that is written also counts as just read, so the compactor does not drop a freshly built feed before its owner
+     * had a chance to read it.
+     * @param feeds Posts to add, keyed by the user that owns the feed.
+     */
+    public void rebuildAll(@NotNull Map<String, List<FeedCursor>> feeds) {
+        Objects.requireNonNull(feeds, "Method argument feeds cannot be null");
+        if (isPacked()) {
+            for (Map.Entry<String, List<FeedCursor>> feed : feeds.entrySet()) {
+                if (feed.getValue().isEmpty()) continue;
+                rebuildPacked(packedTag(feed.getKey()), feed.getValue());
+                touch(feed.getKey());
+            }
+            return;
+        }
+        double now = System.currentTimeMillis();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Map.Entry<String, List<FeedCursor>> feed : feeds.entrySet()) {
+                if (feed.getValue().isEmpty()) continue;
+                String key = tag(feed.getKey());
+                for (FeedCursor position : feed.getValue()) {
+                    stringConnection.zAdd(key, position.getScore(), Long.toString(position.getPost_id()));
+                }
+                stringConnection.zRemRange(key, 0, -maxLength - 1);
+                stringConnection.zAdd(activityTag(), now, feed.getKey());
+            }
+            // Results are collected by executePipelined, so the callback must return null.
+            return null;
+        });
+    }
+
+    /**
+     * Removes posts from a user's feed, for example after the user unfollowed their author.
+     * @param username User that owns the feed.
+     * @param postIds Posts to remove. Posts that are not in the feed are ignored.
+     */
+    public void remove(@NotNull String username, @NotNull Collection<Long> postIds) {
+        Objects.requireNonNull(postIds, "Method argument postIds cannot be null");
+        if (postIds.isEmpty()) return;
+        if (isPacked()) {
+            removePacked(packedTag(username), new HashSet<>(postIds));
+            return;
+        }
+        // A single ZREM takes every member, so the whole removal is one round trip.
+        stringRedisTemplate.opsForZSet().remove(tag(username), postIds.stream().map(String::valueOf).toArray());
+    }
+
+    /**
+     * Removes a post from many feeds at once, for example after the post was deleted. Writes are pipelined in batches the same
+     * way as {@link NewsFeedCacheDao#pushAll(Collection, long, long)}. The post is also removed from its author's index.
+     * @param author User that created the post.
+     * @param usernames Users that own the feeds.
+     * @param post_id Post to remove.
+     */
+    public void removeAll(@NotNull String author, @NotNull Collection<String> usernames, long post_id) {
+        Objects.requireNonNull(usernames, "Method argument usernames cannot be null");
+        stringRedisTemplate.opsForZSet().remove(authorTag(author), Long.toString(post_id));
+        if (isPacked()) {
+            for (String username : usernames) {
+                removePacked(packedTag(username), Collections.singleton(post_id));
+            }
+            return;
+        }
+        String member = Long.toString(post_id);
+        List<String> batch = new ArrayList<>(Math.min(usernames.size(), batchSize));
+        for (String username : usernames) {
+            batch.add(tag(username));
+            // Flush the batch once it is full.
+            if (batch.size() >= batchSize) {
+                removeBatch(batch, member);
+                batch.clear();
+            }
+        }
+        // Flush whatever is left over.
+        if (!batch.isEmpty()) removeBatch(batch, member);
+    }
+
+    /**
+     * Records that posts were deleted. Tombstoned posts are skipped by every read until they are forgotten, so reads never
+     * look them up in the persistent datastore while they are still waiting to be removed from feeds.
+     * @param postIds Deleted posts.
+     */
+    public void addTombstones(@NotNull Collection<Long> postIds) {
+        Objects.requireNonNull(postIds, "Method argument postIds cannot be null");
+        if (postIds.isEmpty()) return;
+        double now = System.currentTimeMillis();
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+        for (long post_id : postIds) {
+            tuples.add(new DefaultTypedTuple<>(Long.toString(post_id), now));
+        }
+        stringRedisTemplate.opsForZSet().add(tombstonesTag(), tuples);
+    }
+
+    /**
+     * Forgets the tombstone of a post once it has been removed from every feed, so reads no longer have to skip it.
+     * @param post_id Deleted post.
+     */
+    public void removeTombstone(long post_id) {
+        stringRedisTemplate.opsForZSet().remove(tombstonesTag(), Long.toString(post_id));
+    }
+
+    /**
+     * Forgets the tombstones of posts that were deleted before the cutoff. Catches tombstones that were never removed, for
+     * example because the retraction failed or the post was found missing while a feed was read.
+     * @param cutoff Milliseconds since the epoch.
+     * @return Number of tombstones forgotten.
+     */
+    public long forgetTombstonesBefore(long cutoff) {
+        Long removed = stringRedisTemplate.opsForZSet().removeRangeByScore(tombstonesTag(), Double.NEGATIVE_INFINITY, cutoff);
+        return removed == null ? 0 : removed;
+    }
+
+    /**
+     * Sends ZREM for every feed in a batch in a single pipeline.
+     * @param keys Redis keys of the feeds.
+     * @param member Post ID to remove.
+     */
+    private void removeBatch(List<String> keys, String member) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String key : keys) {
+                stringConnection.zRem(key, member);
+            }
+            // Results are collected by executePipelined, so the callback must return null.
+            return null;
+        });
+    }
+
+    /**
+     * Records that a user just read their feed, so that the compactor does not treat the feed as dormant.
+     * @param username User that read their feed.
+     */
+    public void touch(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        stringRedisTemplate.opsForZSet().add(activityTag(), username, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns when a user last read their feed.
+     * @param username User to look up.
+     * @return Milliseconds since the epoch, or null if no read was recorded.
+     */
+    public Long getLastActive(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        Double score = stringRedisTemplate.opsForZSet().score(activityTag(), username);
+        return score == null ? null : score.longValue();
+    }
+
+    /**
+     * Returns every user that read their feed since the cutoff.
+     * @param cutoff Milliseconds since the epoch.
+     * @return Usernames, in no particular order.
+     */
+    public Set<String> getActiveSince(long cutoff) {
+        Set<String> usernames = stringRedisTemplate.opsForZSet().rangeByScore(activityTag(), cutoff, Double.POSITIVE_INFINITY);
+        return usernames == null ? Collections.emptySet() : usernames;
+    }
+
+    /**
+     * Forgets the activity of every user that has not read their feed since the cutoff.
+     * @param cutoff Milliseconds since the epoch.
+     */
+    public void forgetInactiveSince(long cutoff) {
+        stringRedisTemplate.opsForZSet().removeRangeByScore(activityTag(), Double.NEGATIVE_INFINITY, cutoff);
+    }
+
+    /**
+     * Walks every feed in the datastore with SCAN, so that Redis is never blocked by a large KEYS call.
+     * @param consumer Called with the owner of each feed. Feeds may be reported more than once if they are written during the walk.
+     */
+    public void scanFeeds(@NotNull Consumer<String> consumer) {
+        Objects.requireNonNull(consumer, "Method argument consumer cannot be null");
+        String prefix = (isPacked() ? CachedItemDao.PURPOSE_NEWS_FEED_PACKED : CachedItemDao.PURPOSE_NEWS_FEED_CACHE) + CachedItemDao.TAG_SPLITTER;
+        ScanOptions options = ScanOptions.scanOptions().match(prefix + "*").count(SCAN_COUNT).build();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    consumer.accept(new String(cursor.next(), StandardCharsets.UTF_8).substring(prefix.length()));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not close SCAN cursor", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Trims a user's feed to the current maximum length, for example after the maximum was lowered.
+     * @param username User that owns the feed.
+     * @return Number of bytes reclaimed, measured as the change in the serialized size of the feed.
+     */
+    public long trim(@NotNull String username) {
+        String key = isPacked() ? packedTag(username) : tag(username);
+        if (isPacked()) {
+            if (PackedFeedCodec.count(readPacked(username)) <= maxLength) return 0;
+            long before = serializedSize(key);
+            compact(key);
+            return Math.max(0, before - serializedSize(key));
+        }
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        if (size == null || size <= maxLength) return 0;
+        long before = serializedSize(key);
+        stringRedisTemplate.opsForZSet().removeRange(key, 0, -maxLength - 1);
+        return Math.max(0, before - serializedSize(key));
+    }
+
+    /**
+     * Deletes a user's feed, along with its rebuild marker, so fan-out does not recreate the feed until the next read rebuilds it.
+     * @param username User that owns the feed.
+     * @return Number of bytes reclaimed, measured as the serialized size of the feed.
+     */
+    public long drop(@NotNull String username) {
+        String key = isPacked() ? packedTag(username) : tag(username);
+        long before = serializedSize(key);
+        stringRedisTemplate.delete(Arrays.asList(key, rebuildMarkerTag(username)));
+        return before;
+    }
+
+    /**
+     * Gives up on a rebuild of a user's feed. Posts fanned out during the rebuild are deleted along with the feed, so the next
+     * rebuild is not kept out by a partial feed, while the cooldown of the rebuild stays in place until it runs out.
+     * @param username User that owns the feed.
+     */
+    public void abandonRebuild(@NotNull String username) {
+        stringRedisTemplate.execute(scriptAbandonRebuild,
+                Arrays.asList(isPacked() ? packedTag(username) : tag(username), rebuildMarkerTag(username), rebuildCooldownTag(username)));
+    }
+
+    /**
+     * Checks if a user's feed is being rebuilt, or was rebuilt within the cooldown. Posts written into a missing feed while this
+     * holds are kept by the rebuild instead of standing in for the whole feed.
+     * @param username User that owns the feed.
+     * @return True if the rebuild marker exists.
+     */
+    public boolean isRebuilding(@NotNull String username) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(rebuildMarkerTag(username)));
+    }
+
+    /**
+     * Checks if a user's feed failed to rebuild within the cooldown.
+     * @param username User that owns the feed.
+     * @return True if the feed must not be rebuilt yet.
+     */
+    public boolean isRebuildCoolingDown(@NotNull String username) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(rebuildCooldownTag(username)));
+    }
+
+    /**
+     * Measures a key with DUMP. The serialized size tracks memory use closely and, unlike MEMORY USAGE, works on every Redis version.
+     * @param key Redis key to measure.
+     * @return Size of the serialized value in bytes, or zero if the key does not exist.
+     */
+    private long serializedSize(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] dump = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.dump(rawKey));
+        return dump == null ? 0 : dump.length;
+    }
+
+    /**
+     * Appends a post to every packed feed in a batch with a single script call, then compacts the feeds that grew too long.
+     * @param keys Redis keys of the feeds, followed by their rebuild markers.
+     * @param member Post ID to add.
+     */
+    private void pushPackedBatch(List<String> keys, String member) {
+        @SuppressWarnings("unchecked")
+        List<Long> overflow = stringRedisTemplate.execute(scriptPackedPush, keys, member, Integer.toString(maxLength));
+        if (overflow == null) return;
+        for (Long position : overflow) {
+            compact(keys.get(position.intValue() - 1));
+        }
+    }
+
+    /**
+     * Trims a packed feed to its maximum length. Feeds are allowed to grow to twice their maximum length between compactions,
+     * so the rewrite is paid once per maxLength posts instead of on every post. Skipped if another post is appended meanwhile,
+     * since the next append will try again.
+     * @param key Redis key of the feed.
+     */
+    private void compact(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            byte[] value = connection.get(rawKey);
+            if (PackedFeedCodec.count(value) <= maxLength) return null;
+            byte[] compacted = PackedFeedCodec.encode(PackedFeedCodec.decode(value, FROM_BEGINNING, maxLength));
+            connection.eval(scriptPackedReplace, ReturnType.INTEGER, 1, rawKey, value, compacted);
+            return null;
+        });
+    }
+
+    /**
+     * Merges posts into a packed feed by post ID. Retried if another post is appended while the merged feed is encoded.
+     * @param key Redis key of the feed.
+     * @param positions Posts to add.
+     */
+    private void rebuildPacked(String key, List<FeedCursor> positions) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (int attempt = 0; attempt < REBUILD_ATTEMPTS; attempt++) {
+                byte[] value = connection.get(rawKey);
+                TreeSet<Long> merged = new TreeSet<>(Collections.reverseOrder());
+                merged.addAll(PackedFeedCodec.decode(value, FROM_BEGINNING, maxLength));
+                for (FeedCursor position : positions) {
+                    merged.add(position.getPost_id());
+                }
+                byte[] rebuilt = PackedFeedCodec.encode(merged.stream().limit(maxLength).collect(Collectors.toList()));
+                boolean replaced = value == null
+                        ? Boolean.TRUE.equals(connection.setNX(rawKey, rebuilt))
+                        : Long.valueOf(1).equals(connection.eval(scriptPackedReplace, ReturnType.INTEGER, 1, rawKey, value, rebuilt));
+                if (replaced) return null;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Removes posts from a packed feed. Retried if another post is appended while the filtered feed is encoded.
+     * @param key Redis key of the feed.
+     * @param postIds Posts to remove.
+     */
+    private void removePacked(String key, Set<Long> postIds) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (int attempt = 0; attempt < REBUILD_ATTEMPTS; attempt++) {
+                byte[] value = connection.get(rawKey);
+                List<Long> feed = PackedFeedCodec.decode(value, FROM_BEGINNING, PackedFeedCodec.count(value));
+                if (!feed.removeIf(postIds::contains)) return null;
+                byte[] filtered = PackedFeedCodec.encode(feed);
+                if (Long.valueOf(1).equals(connection.eval(scriptPackedReplace, ReturnType.INTEGER, 1, rawKey, value, filtered))) return null;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Reads the raw value of a packed feed.
+     * @param username User that owns the feed.
+     * @return Encoded feed, or null if it does not exist.
+     */
+    private byte[] readPacked(String username) {
+        byte[] rawKey = packedTag(username).getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * Reads a page of a packed feed merged with the indexes of the given authors. Packed feeds have no scores, so the merge is
+     * by post ID, which grows with creation time, and the post ID doubles as the score of each position.
+     * @param username User that owns the feed.
+     * @param authors Pull authors followed by the user.
+     * @param after Only post IDs lower than this are returned, or {@link NewsFeedCacheDao#FROM_BEGINNING} for no limit.
+     * @param count Number of posts to return.
+     * @return Positions of up to count posts, highest post ID first.
+     */
+    private List<FeedCursor> readMergedPacked(String username, Collection<String> authors, long after, int count) {
+        byte[] value = readPacked(username);
+        List<Long> authorPosts = new ArrayList<>();
+        for (String author : authors) {
+            for (long post_id : readAuthor(author)) {
+                if (after == FROM_BEGINNING || post_id < after) authorPosts.add(post_id);
+            }
+        }
+        // Read one page size deep first, and twice as deep again whenever deleted posts leave the page short.
+        for (int fetch = count; ; fetch *= 2) {
+            List<Long> feed = PackedFeedCodec.decode(value, after, fetch);
+            boolean more = feed.size() == fetch;
+            TreeSet<Long> merged = new TreeSet<>(Collections.reverseOrder());
+            merged.addAll(feed);
+            merged.addAll(authorPosts);
+            // Posts past the end of the read may belong before the tail of the merge, so only the first fetch posts are used.
+            Object[] args = new Object[(more ? Math.min(merged.size(), fetch) : merged.size()) + 1];
+            args[0] = Integer.toString(count);
+            int i = 1;
+            for (Iterator<Long> candidates = merged.iterator(); i < args.length; i++) {
+                args[i] = Long.toString(candidates.next());
+            }
+            @SuppressWarnings("unchecked")
+            List<String> live = stringRedisTemplate.execute(scriptFilterTombstones, Collections.singletonList(tombstonesTag()), args);
+            if (!more || (live != null && live.size() >= count)) {
+                return toPostIds(live).stream().map(post_id -> new FeedCursor(post_id, post_id)).collect(Collectors.toList());
+            }
+        }
+    }
+
+    /**
+     * Checks if feeds are stored with {@link PackedFeedCodec}.
+     * @return True if envibe.feed.storage is packed.
+     */
+    private boolean isPacked() {
+        return "packed".equals(storage);
+    }
+
+    /**
+     * Converts sorted set members to post IDs.
+     * @param members Raw sorted set members. May be null.
+     * @return List of post IDs in the same order.
+     */
+    private static List<Long> toPostIds(List<String> members) {
+        List<Long> postIds = new ArrayList<>();
+        if (members == null) return postIds;
+        for (String member : members) {
+            postIds.add(Long.parseLong(member));
+        }
+        return postIds;
+    }
+
+    /**
+     * Generates the Redis key of a user's feed.
+     * @param username User that owns the feed.
+     * @return Key that follows the PURPOSE|USER schema.
+     */
+    private String tag(String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_CACHE, username);
+    }
+
+    /**
+     * Generates the Redis key of a user's packed feed.
+     * @param username User that owns the feed.
+     * @return Key that follows the PURPOSE|USER schema.
+     */
+    private String packedTag(String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_PACKED, username);
+    }
+
+    /**
+     * Generates the Redis key of an author's index of recent posts.
+     * @param author User that created the posts.
+     * @return Key that follows the PURPOSE|USER schema.
+     */
+    private String authorTag(String author) {
+        Objects.requireNonNull(author, "Method argument author cannot be null");
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_AUTHOR, author);
+    }
+
+    /**
+     * Generates the Redis key of the marker that {@link com.envibe.envibe.service.NewsFeedRebuildService} holds while it rebuilds
+     * a user's feed. Posts are pushed into missing feeds while it exists, so none are lost between reading the persistent
+     * datastore and writing the rebuilt feed.
+     * @param username User that owns the feed.
+     * @return Key that follows the PURPOSE|USER schema.
+     */
+    private String rebuildMarkerTag(String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_REBUILD, username);
+    }
+
+    /**
+     * Generates the Redis key of the marker that is left behind by a failed rebuild of a user's feed until the cooldown is over.
+     * Unlike the rebuild marker, fan-out ignores it.
+     * @param username User that owns the feed.
+     * @return Key that follows the PURPOSE|USER schema.
+     */
+    private String rebuildCooldownTag(String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_REBUILD_COOLDOWN, username);
+    }
+
+    /**
+     * Generates the Redis key of the sorted set of users by last feed read.
+     * @return Key that follows the PURPOSE|SUBTAG schema.
+     */
+    private String activityTag() {
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_ACTIVITY, "ALL");
+    }
+
+    /**
+     * Generates the Redis key of the sorted set of deleted posts by deletion time.
+     * @return Key that follows the PURPOSE|SUBTAG schema.
+     */
+    private String tombstonesTag() {
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_TOMBSTONES, "ALL");
+    }
+
+    /**
+     * Generates the Redis key of the set of pull authors.
+     * @return Key that follows the PURPOSE|SUBTAG schema.
+     */
+    private String pullAuthorsTag() {
+        return cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_PULL_AUTHORS, "ALL");
+    }
+}
@@ -6,16 +6,25 @@ import com.envibe.envibe.rowmapper.NewsItemRowMapper;
 import com.envibe.envibe.service.NewsFeedUpdateService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -38,6 +47,24 @@ public class NewsItemDao {
     @Autowired
     private NewsFeedUpdateService newsFeedUpdateService;
 
+    /**
+     * Injected data access object for news feed caches. Deleted posts are tombstoned there.
+     */
+    @Autowired
+    private NewsFeedCacheDao newsFeedCacheDao;
+
+    /**
+     * Injected data access object for cached feed entries. Entries are invalidated whenever a post changes.
+     */
+    @Autowired
+    private FeedEntryCacheDao feedEntryCacheDao;
+
+    /**
+     * Injected allocator that hands out post IDs from memory when it is enabled.
+     */
+    @Autowired
+    private PostIdAllocator postIdAllocator;
+
     /**
      * Prepared query to create a single post.
      */
@@ -45,10 +72,10 @@ public class NewsItemDao {
                                                 "VALUES (?, ?, ?)";
 
     /**
-     * Prepared query to create a single post when the underlying database does not support auto-incrementing primary keys.
+     * Prepared query to create a single post with an ID handed out by {@link PostIdAllocator}.
      */
-    final String queryCreateNonAutoKey = "INSERT INTO newspost (post_id, user_name, post_date, post_content) " +
-                                            "VALUES (?, ?, ?, ?)";
+    private static final String queryCreateWithId = "INSERT INTO newspost (post_id, user_name, post_date, post_content) " +
+                                                    "VALUES (?, ?, ?, ?)";
 
     /**
      * Prepared query to find a single post by ID.
@@ -59,12 +86,58 @@ public class NewsItemDao {
                                             "LIMIT 1";
 
     /**
-     * Prepared query to find all posts created by a specified username.
+     * Prepared query to find many posts by ID in a single round trip. Takes one array parameter. Only supported by PostgreSQL.
+     */
+    private static final String queryReadAny = "SELECT post_id, user_name, post_date, post_content " +
+                                                "FROM newspost " +
+                                                "WHERE post_id = ANY(?)";
+
+    /**
+     * Prefix of the query to find many posts by ID in a single round trip on databases that do not support array parameters.
+     * Followed by one placeholder per ID and a closing parenthesis.
+     */
+    private static final String queryReadInPrefix = "SELECT post_id, user_name, post_date, post_content " +
+                                                    "FROM newspost " +
+                                                    "WHERE post_id IN (";
+
+    /**
+     * Prepared query to find the newest posts created by a specified username. Served by newspost_user_date_idx without a sort,
+     * which is why the ORDER BY repeats the columns and null ordering of the index. Package-private so the query plan tests
+     * explain the query that runs.
      */
-    private static final String queryReadByUsername = "SELECT post_id, user_name, post_date, post_content " +
+    static final String queryReadNewestByUsername = "SELECT post_id, user_name, post_date, post_content " +
+                                                            "FROM newspost " +
+                                                            "WHERE user_name = ? " +
+                                                            "ORDER BY user_name, post_date DESC NULLS LAST, post_id DESC NULLS LAST " +
+                                                            "LIMIT ?";
+
+    /**
+     * Prepared query to find every user that a user follows. Served by the primary key of user_relationship.
+     */
+    private static final String queryReadFollowees = "SELECT user_friend FROM user_relationship WHERE user_name = ?";
+
+    /**
+     * Number of authors merged by a single news feed query. Users who follow more accounts than this are read in several
+     * queries, so the statement and its plan stay small.
+     */
+    private static final int FEED_AUTHORS_PER_QUERY = 100;
+
+    /**
+     * Prepared query to find the newest posts created by a specified username since a point in time. Reads a single range of
+     * newspost_user_date_idx, the same way as queryReadNewestByUsername.
+     */
+    static final String queryReadNewestSinceByUsername = "SELECT post_id, user_name, post_date, post_content " +
+                                                                "FROM newspost " +
+                                                                "WHERE user_name = ? AND post_date >= ? " +
+                                                                "ORDER BY user_name, post_date DESC NULLS LAST, post_id DESC NULLS LAST " +
+                                                                "LIMIT ?";
+
+    /**
+     * Prepared query to find every user that created a post since a point in time. Served by newspost_date_user_idx.
+     */
+    static final String queryReadAuthorsSince = "SELECT DISTINCT user_name " +
                                                         "FROM newspost " +
-                                                        "WHERE user_name = ? " +
-                                                        "LIMIT ?";
+                                                        "WHERE post_date >= ?";
 
     /**
      * Prepared query to update a single post by ID.
@@ -83,9 +156,9 @@ public class NewsItemDao {
                                                 "WHERE post_id = ?";
 
     /**
-     * Prepared query to return the number of posts in the permanent datastore.
+     * True if the permanent datastore binds arrays to = ANY(?). Detected from the database product name on startup.
      */
-    final String queryCountRows = "SELECT COUNT(*) FROM newspost";
+    private boolean arrayParameters;
 
     /**
      * Default number of posts to return in a query that returns more than one record.
@@ -94,17 +167,27 @@ public class NewsItemDao {
 
     /**
      * Creates a pre-validated post in the permanent datastore. Also triggers the newsfeed update service.
-     * @see NewsFeedUpdateService#triggerWorker(int)
+     * @see NewsFeedUpdateService#triggerWorker(long)
      * @param newsItem Pre-validated post model object to insert.
      */
     public void create(@Valid NewsItem newsItem) {
         Objects.requireNonNull(newsItem, "Method argument newsItem cannot be null");
-        int newId;
-        if(supportsSerialPrimaryKeys()) {
-            newId = jdbcTemplate.update(queryCreate, newsItem.getUsername(), newsItem.getPost_date(), newsItem.getContent());
+        long newId;
+        if (postIdAllocator.isEnabled()) {
+            // IDs come from a block reserved in memory, so the insert needs no extra round trip to the sequence.
+            newId = postIdAllocator.next();
+            jdbcTemplate.update(queryCreateWithId, newId, newsItem.getUsername(), newsItem.getPost_date(), newsItem.getContent());
         } else {
-            newId = getNextId();
-            jdbcTemplate.update(queryCreateNonAutoKey, newId, newsItem.getUsername(), newsItem.getPost_date(), newsItem.getContent());
+            // The column default takes the ID from newspost_id_seq, and the driver hands it back as a generated key.
+            KeyHolder keyHolder = new GeneratedKeyHolder();
+            jdbcTemplate.update(connection -> {
+                PreparedStatement ps = connection.prepareStatement(queryCreate, new String[] { "post_id" });
+                ps.setString(1, newsItem.getUsername());
+                ps.setTimestamp(2, new Timestamp(newsItem.getPost_date().getTime()));
+                ps.setString(3, newsItem.getContent());
+                return ps;
+            }, keyHolder);
+            newId = Objects.requireNonNull(keyHolder.getKey(), "Insert into newspost returned no generated post_id").longValue();
         }
         newsItem.setPost_id(newId);
         // Fire off the NewsFeedUpdaterService to add the post to the user's friend's newsfeeds.
@@ -116,25 +199,45 @@ public class NewsItemDao {
      * @param post_id Post to search for.
      * @return NewsItem model object if the specified ID exists. Otherwise returns null.
      */
-    public NewsItem read(@NotNull int post_id) {
+    public NewsItem read(@NotNull long post_id) {
         Objects.requireNonNull(post_id, "Method argument post_id cannot be null");
         try {
-            return jdbcTemplate.queryForObject(queryRead, new NewsItemRowMapper(), Integer.toString(post_id));
+            return jdbcTemplate.queryForObject(queryRead, new NewsItemRowMapper(), post_id);
         } catch (EmptyResultDataAccessException e) {
             return null;
         }
     }
 
     /**
-     * Batch call that searches for and returns posts with matching IDs.
+     * Batch call that searches for and returns posts with matching IDs in a single query.
      * @param post_ids List of IDs to look for.
-     * @return NewsItem model objects if their corresponding IDs exist. Otherwise returns null.
+     * @return NewsItem model objects in the same order as post_ids. Contains null for every ID that does not exist.
      */
-    public List<NewsItem> read(int... post_ids) {
-        // Apparently batch SELECT calls are not allowed. This will just be a wrapper method.
-        ArrayList<NewsItem> results = new ArrayList<>();
-        for (int post_id : post_ids) {
-            results.add(read(post_id));
+    public List<NewsItem> read(long... post_ids) {
+        Objects.requireNonNull(post_ids, "Method argument post_ids cannot be null");
+        if (post_ids.length == 0) return new ArrayList<>();
+        // Fetch every post in one round trip. The database returns them in no particular order.
+        List<NewsItem> found;
+        if (supportsArrayParameters()) {
+            Long[] boxedIds = Arrays.stream(post_ids).boxed().toArray(Long[]::new);
+            found = jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(queryReadAny);
+                statement.setArray(1, connection.createArrayOf("bigint", boxedIds));
+                return statement;
+            }, new NewsItemRowMapper());
+        } else {
+            String placeholders = String.join(",", Collections.nCopies(post_ids.length, "?"));
+            Object[] parameters = Arrays.stream(post_ids).boxed().toArray();
+            found = jdbcTemplate.query(queryReadInPrefix + placeholders + ")", new NewsItemRowMapper(), parameters);
+        }
+        // Put the posts back in the order they were requested in.
+        Map<Long, NewsItem> postsById = new HashMap<>();
+        for (NewsItem newsItem : found) {
+            postsById.put(newsItem.getPost_id(), newsItem);
+        }
+        ArrayList<NewsItem> results = new ArrayList<>(post_ids.length);
+        for (long post_id : post_ids) {
+            results.add(postsById.get(post_id));
         }
         return results;
     }
@@ -142,7 +245,7 @@ public class NewsItemDao {
     /**
      * Searches for and returns a list of posts created by the specified user.
      * @param user_name Username to search for in list of post creators.
-     * @return List of unsorted posts with specified username as the original author.
+     * @return List of posts with specified username as the original author, newest first.
      */
     public List<NewsItem> read(@ValidUsername String user_name) {
         return read(user_name, DEFAULT_POST_COUNT);
@@ -152,17 +255,174 @@ public class NewsItemDao {
      * Searches for and returns a list of posts created by the specified user.
      * @param user_name Username to search for in list of post creators.
      * @param count Number of posts to return.
-     * @return List of unsorted posts with specified username as the original author.
+     * @return List of posts with specified username as the original author, newest first.
      */
     public List<NewsItem> read(@ValidUsername String user_name, int count) {
+        return readNewest(user_name, count);
+    }
+
+    /**
+     * Searches for the newest posts created by the specified user.
+     * @param user_name Username to search for in list of post creators.
+     * @param count Maximum number of posts to return.
+     * @return List of posts with specified username as the original author, newest first.
+     */
+    public List<NewsItem> readNewest(@ValidUsername String user_name, int count) {
         Objects.requireNonNull(user_name, "Method argument user_name cannot be null");
+        return jdbcTemplate.query(queryReadNewestByUsername, new NewsItemRowMapper(), user_name, count);
+    }
+
+    /**
+     * Searches for the newest posts that belong in a user's news feed. Used to rebuild a feed cache that has gone missing.
+     * @param user_name Username that owns the news feed.
+     * @param count Maximum number of posts to return.
+     * @return List of posts by the user and the users they follow, newest first.
+     */
+    public List<NewsItem> readFeed(@ValidUsername String user_name, int count) {
+        Objects.requireNonNull(user_name, "Method argument user_name cannot be null");
+        // Users see their own posts on their feed.
+        List<String> authors = new ArrayList<>();
+        authors.add(user_name);
+        authors.addAll(jdbcTemplate.queryForList(queryReadFollowees, String.class, user_name));
+        List<NewsItem> posts = new ArrayList<>();
+        for (int start = 0; start < authors.size(); start += FEED_AUTHORS_PER_QUERY) {
+            List<String> chunk = authors.subList(start, Math.min(authors.size(), start + FEED_AUTHORS_PER_QUERY));
+            posts.addAll(readNewestOfAll(chunk, count));
+        }
+        // Only needed when the authors took more than one query, since each query already returns its posts in order.
+        if (authors.size() > FEED_AUTHORS_PER_QUERY) {
+            posts.sort(Comparator.comparing(NewsItem::getPost_date, Comparator.nullsFirst(Comparator.<Date>naturalOrder()))
+                    .thenComparingLong(NewsItem::getPost_id).reversed());
+            if (posts.size() > count) posts = new ArrayList<>(posts.subList(0, count));
+        }
+        return posts;
+    }
+
+    /**
+     * Finds the newest posts of several authors in a single query. Every author gets its own branch of a UNION ALL that reads at
+     * most count posts from newspost_user_date_idx, the same way as {@link NewsItemDao#readNewest(String, int)}, so the query
+     * costs count index entries per author instead of a scan and sort of every post by every author.
+     * @param authors Usernames of the authors.
+     * @param count Maximum number of posts to return.
+     * @return List of posts by any of the authors, newest first.
+     */
+    private List<NewsItem> readNewestOfAll(List<String> authors, int count) {
+        String query = queryReadNewestOfAll(authors.size());
+        List<Object> args = new ArrayList<>(authors.size() * 2 + 1);
+        for (String author : authors) {
+            args.add(author);
+            args.add(count);
+        }
+        args.add(count);
+        return jdbcTemplate.query(query, new NewsItemRowMapper(), args.toArray());
+    }
+
+    /**
+     * Streams the newest posts of several authors created since a point in time to a consumer. Every author is read from its
+     * own range of newspost_user_date_idx, so only the posts of the given authors are touched. Authors are read in chunks of
+     * UNION ALL queries the same way as {@link NewsItemDao#readFeed(String, int)}, and rows are fetched from the database in
+     * chunks of fetchSize, so the posts never have to fit in memory at once.
+     * @param authors Usernames of the authors.
+     * @param since Oldest post date to include.
+     * @param count Maximum number of posts to read per author.
+     * @param fetchSize Number of rows fetched per round trip.
+     * @param consumer Called once per post. The posts of each author arrive newest first, but authors are interleaved in no
+     *                 particular order.
+     */
+    public void streamNewestSince(@NotNull List<String> authors, @NotNull Date since, int count, int fetchSize, @NotNull Consumer<NewsItem> consumer) {
+        Objects.requireNonNull(authors, "Method argument authors cannot be null");
+        Objects.requireNonNull(since, "Method argument since cannot be null");
+        Objects.requireNonNull(consumer, "Method argument consumer cannot be null");
+        for (int start = 0; start < authors.size(); start += FEED_AUTHORS_PER_QUERY) {
+            List<String> chunk = authors.subList(start, Math.min(authors.size(), start + FEED_AUTHORS_PER_QUERY));
+            String query = queryReadNewestSinceOfAll(chunk.size());
+            jdbcTemplate.execute((ConnectionCallback<Object>) connection -> {
+                // PostgreSQL ignores the fetch size and loads the whole result unless it runs inside a transaction. The read-only
+                // flag has to be set before the transaction begins.
+                boolean autoCommit = connection.getAutoCommit();
+                boolean readOnly = connection.isReadOnly();
+                connection.setReadOnly(true);
+                connection.setAutoCommit(false);
+                Throwable failure = null;
+                try (PreparedStatement statement = connection.prepareStatement(query)) {
+                    statement.setFetchSize(fetchSize);
+                    int parameter = 1;
+                    for (String author : chunk) {
+                        statement.setString(parameter++, author);
+                        statement.setTimestamp(parameter++, new Timestamp(since.getTime()));
+                        statement.setInt(parameter++, count);
+                    }
+                    NewsItemRowMapper rowMapper = new NewsItemRowMapper();
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        int rowNum = 0;
+                        while (resultSet.next()) {
+                            consumer.accept(rowMapper.mapRow(resultSet, rowNum++));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    endReadOnlyTransaction(connection, autoCommit, readOnly, failure);
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Rolls back a read-only transaction and restores the connection settings it changed. If the transaction failed, problems
+     * during the cleanup are attached to that failure instead of replacing it. See UserDao#streamAll.
+     * @param connection Connection that ran the transaction.
+     * @param autoCommit Auto-commit setting to restore.
+     * @param readOnly Read-only setting to restore.
+     * @param failure Exception that ended the transaction, or null if it succeeded.
+     * @throws SQLException If the cleanup failed after a successful transaction.
+     */
+    private static void endReadOnlyTransaction(Connection connection, boolean autoCommit, boolean readOnly, Throwable failure) throws SQLException {
         try {
-            return jdbcTemplate.query(queryReadByUsername, new NewsItemRowMapper(), user_name, String.valueOf(count));
-        } catch (EmptyResultDataAccessException e) {
-            return new ArrayList<NewsItem>();
+            // The transaction only read rows, so there is nothing to keep.
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+            connection.setReadOnly(readOnly);
+        } catch (SQLException | RuntimeException e) {
+            if (failure == null) throw e;
+            failure.addSuppressed(e);
         }
     }
 
+    /**
+     * Builds the query that finds the newest posts of several authors. Takes the username and the number of posts of every
+     * author, then the total number of posts.
+     * @param authorCount Number of authors.
+     * @return Prepared query with one branch of queryReadNewestByUsername per author.
+     */
+    static String queryReadNewestOfAll(int authorCount) {
+        String branches = String.join(" UNION ALL ", Collections.nCopies(authorCount, "(" + queryReadNewestByUsername + ")"));
+        return "SELECT post_id, user_name, post_date, post_content FROM (" + branches + ") AS feed " +
+                "ORDER BY post_date DESC NULLS LAST, post_id DESC NULLS LAST LIMIT ?";
+    }
+
+    /**
+     * Builds the query that finds the newest posts of several authors since a point in time. Takes the username, the oldest
+     * post date and the number of posts of every author.
+     * @param authorCount Number of authors.
+     * @return Prepared query with one branch of queryReadNewestSinceByUsername per author.
+     */
+    static String queryReadNewestSinceOfAll(int authorCount) {
+        return String.join(" UNION ALL ", Collections.nCopies(authorCount, "(" + queryReadNewestSinceByUsername + ")"));
+    }
+
+    /**
+     * Searches for every user that created a post since a point in time.
+     * @param since Oldest post date to include.
+     * @return List of usernames, in no particular order.
+     */
+    public List<String> readAuthorsSince(@NotNull Date since) {
+        Objects.requireNonNull(since, "Method argument since cannot be null");
+        return jdbcTemplate.queryForList(queryReadAuthorsSince, String.class, new Timestamp(since.getTime()));
+    }
+
     /**
      * Updates the attributes of the specified NewsItem model using post_id to find original record.
      * @param newsItem Updated NewsItem model object to replace original.
@@ -170,6 +430,8 @@ public class NewsItemDao {
     public void update(@Valid NewsItem newsItem) {
         Objects.requireNonNull(newsItem, "Method argument newsItem cannot be null");
         jdbcTemplate.update(queryUpdate, newsItem.getUsername(), newsItem.getPost_date(), newsItem.getContent(), newsItem.getPost_id());
+        // Drop the cached feed entry so the next read sees the edit.
+        feedEntryCacheDao.invalidatePost(newsItem.getPost_id());
     }
 
     /**
@@ -180,21 +442,28 @@ public class NewsItemDao {
         Objects.requireNonNull(newsItem, "Method argument newsItem cannot be null");
         Objects.requireNonNull(newsItem.getPost_id(), "Object attribute newsItem.post_id cannot be null");
         jdbcTemplate.update(queryDelete, newsItem.getPost_id());
+        // Drop the cached feed entry so the post is not served from the cache.
+        feedEntryCacheDao.invalidatePost(newsItem.getPost_id());
+        // Hide the post from every feed right away, then remove it from the feeds in the background.
+        newsFeedCacheDao.addTombstones(Collections.singletonList(newsItem.getPost_id()));
+        newsFeedUpdateService.triggerRetractWorker(newsItem.getPost_id(), newsItem.getUsername());
     }
 
     /**
-     * Gets the next ID to use for a post. Used only with databases that don't support the SERIAL datatype.
-     * @return Next available value to use for post_id.
+     * Called on Spring startup. Asks the permanent datastore which database it is, once, so reads don't have to.
      */
-    private int getNextId() {
-        return jdbcTemplate.queryForObject(queryCountRows, Integer.class);
+    @PostConstruct
+    private void init() {
+        String product = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        // Only PostgreSQL is known to bind a Java array to = ANY(?). Every other database gets the IN list, which works everywhere.
+        arrayParameters = product != null && product.toLowerCase(Locale.ROOT).contains("postgres");
     }
 
     /**
-     * Checks if a JDBC permanent datastore is being used that supports auto-incrementing keys.
-     * @return If the current JDBC connection supports the SERIAL keyword.
+     * Checks if a JDBC permanent datastore is being used that supports array query parameters.
+     * @return If the current JDBC connection supports binding an array to = ANY(?).
      */
-    private boolean supportsSerialPrimaryKeys() {
-        return !System.getenv("JDBC_DATABASE_URL").contains("h2");
+    private boolean supportsArrayParameters() {
+        return arrayParameters;
     }
 }
@@ -0,0 +1,129 @@
+package com.envibe.envibe.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact encoding of a news feed as a single Redis string. The value starts with a fixed header that holds the newest post ID
+ * (8 bytes) and the number of entries (4 bytes), both big-endian. The header is followed by one varint per entry, oldest first,
+ * holding the zigzag encoded difference to the previous post ID. New posts are added by rewriting the header and appending one
+ * varint, and pages are read from the newest end by walking the varints backwards, so neither operation touches the rest of the
+ * feed. Consecutive post IDs usually differ by a small amount, so most entries take one or two bytes.
+ *
+ * @author ARMmaster17
+ */
+public final class PackedFeedCodec {
+
+    /**
+     * Size of the header in bytes.
+     */
+    public static final int HEADER_SIZE = 12;
+
+    /**
+     * Utility class, not meant to be created.
+     */
+    private PackedFeedCodec() {
+
+    }
+
+    /**
+     * Encodes a whole feed.
+     * @param postIds Post IDs, newest first.
+     * @return Encoded feed.
+     */
+    public static byte[] encode(List<Long> postIds) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + postIds.size() * 2);
+        long newest = postIds.isEmpty() ? 0 : postIds.get(0);
+        out.write(ByteBuffer.allocate(HEADER_SIZE).putLong(newest).putInt(postIds.size()).array(), 0, HEADER_SIZE);
+        // Entries are stored oldest first so that new posts can be appended.
+        long previous = 0;
+        for (int i = postIds.size() - 1; i >= 0; i--) {
+            writeVarint(out, zigzag(postIds.get(i) - previous));
+            previous = postIds.get(i);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the number of entries in an encoded feed.
+     * @param value Encoded feed. May be null.
+     * @return Number of entries, or zero if the feed does not exist.
+     */
+    public static int count(byte[] value) {
+        if (value == null || value.length < HEADER_SIZE) return 0;
+        return ByteBuffer.wrap(value).getInt(8);
+    }
+
+    /**
+     * Decodes a page of an encoded feed, newest first. Only the entries up to the end of the page are decoded.
+     * @param value Encoded feed. May be null.
+     * @param after Only post IDs lower than this are returned, or {@link NewsFeedCacheDao#FROM_BEGINNING} for no limit.
+     * @param count Maximum number of post IDs to return.
+     * @return Up to count post IDs.
+     */
+    public static List<Long> decode(byte[] value, long after, int count) {
+        List<Long> postIds = new ArrayList<>();
+        if (value == null || value.length < HEADER_SIZE) return postIds;
+        long current = ByteBuffer.wrap(value).getLong(0);
+        int end = value.length;
+        while (end > HEADER_SIZE && postIds.size() < count) {
+            // The last byte of a varint is the only one without the continuation bit, so the varint that ends at end - 1
+            // starts right after the previous byte without it.
+            int start = end - 1;
+            while (start > HEADER_SIZE && (value[start - 1] & 0x80) != 0) start--;
+            if (after == NewsFeedCacheDao.FROM_BEGINNING || current < after) postIds.add(current);
+            current -= unzigzag(readVarint(value, start));
+            end = start;
+        }
+        return postIds;
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that small negative differences also fit in a few bytes.
+     * @param value Signed value.
+     * @return Zigzag encoded value.
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverses {@link PackedFeedCodec#zigzag(long)}.
+     * @param value Zigzag encoded value.
+     * @return Signed value.
+     */
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint, seven bits per byte.
+     * @param out Stream to write to.
+     * @param value Value to write.
+     */
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint.
+     * @param value Encoded feed.
+     * @param position Index of the first byte of the varint.
+     * @return Decoded value.
+     */
+    private static long readVarint(byte[] value, int position) {
+        long result = 0;
+        for (int shift = 0; position < value.length; shift += 7) {
+            byte b = value[position++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        return result;
+    }
+}
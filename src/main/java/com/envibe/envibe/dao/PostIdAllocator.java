@@ -0,0 +1,187 @@
+package com.envibe.envibe.dao;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Optional in-memory allocator of post IDs, enabled by setting envibe.post-id.allocator to one of the modes below.
+ * <p>
+ * In hilo mode, every value of newspost_id_seq reserves a block of IDs that starts at that value, so the allocator only calls
+ * the sequence once per block instead of once per post. Posts inserted without an ID still take the first ID of a fresh block
+ * from the column default, so both ways of inserting can be mixed across application instances.
+ * <p>
+ * In snowflake mode, IDs are built from the time of the insert without asking the database at all: 41 bits of milliseconds
+ * since {@link PostIdAllocator#EPOCH}, 6 bits of node ID and 6 bits of sequence within the millisecond. That keeps every ID
+ * below 2^53, so it survives Lua scripts in Redis and JSON parsers that use doubles. Instances only need distinct node IDs,
+ * and IDs sort in creation order across instances, up to clock skew between them. Snowflake IDs are always higher than IDs
+ * from the sequence, so switching to snowflake keeps that order, but switching back does not.
+ *
+ * @author ARMmaster17
+ */
+@Component
+public class PostIdAllocator {
+
+    /**
+     * Allocator mode that takes every post ID from the column default and reads it back as a generated key.
+     */
+    public static final String MODE_SEQUENCE = "sequence";
+
+    /**
+     * Allocator mode that hands out blocks of post IDs from memory.
+     */
+    public static final String MODE_HILO = "hilo";
+
+    /**
+     * Allocator mode that builds time-ordered post IDs from the clock, node ID and a per-millisecond sequence.
+     */
+    public static final String MODE_SNOWFLAKE = "snowflake";
+
+    /**
+     * Start of snowflake time, 2020-01-01T00:00:00Z in milliseconds since the Unix epoch. 41 bits of milliseconds last until 2089.
+     */
+    public static final long EPOCH = 1577836800000L;
+
+    /**
+     * Number of bits of a snowflake ID that hold the node ID.
+     */
+    static final int NODE_BITS = 6;
+
+    /**
+     * Number of bits of a snowflake ID that hold the sequence within a millisecond.
+     */
+    static final int SEQUENCE_BITS = 6;
+
+    /**
+     * Highest node ID that fits into a snowflake ID.
+     */
+    static final long MAX_NODE = (1L << NODE_BITS) - 1;
+
+    /**
+     * Highest sequence number that fits into a snowflake ID. Every node can create this many posts plus one per millisecond.
+     */
+    static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * Number of IDs reserved by every value of the sequence. Must match the INCREMENT BY of newspost_id_seq.
+     */
+    static final int BLOCK_SIZE = 50;
+
+    /**
+     * Query that reserves the next block of IDs.
+     */
+    private static final String queryNextBlock = "SELECT nextval('newspost_id_seq')";
+
+    /**
+     * Injected JDBC connection object to run queries against. See {@link JdbcTemplate}.
+     */
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * How post IDs are allocated. See the MODE static fields of this class for valid values.
+     */
+    @Value("${envibe.post-id.allocator:" + MODE_SEQUENCE + "}")
+    private String mode;
+
+    /**
+     * Node ID written into snowflake IDs. Must be unique among the instances that insert posts.
+     */
+    @Value("${envibe.post-id.node:0}")
+    private long node;
+
+    /**
+     * Next ID to hand out from the current block.
+     */
+    private long next;
+
+    /**
+     * Last ID of the current block. Smaller than next when no block is reserved.
+     */
+    private long last = -1;
+
+    /**
+     * Millisecond of the last snowflake ID, relative to {@link PostIdAllocator#EPOCH}.
+     */
+    private long lastMillis = -1;
+
+    /**
+     * Sequence number of the last snowflake ID within its millisecond.
+     */
+    private long sequence;
+
+    /**
+     * Called as Spring starts up. Refuses to start with a node ID that does not fit into a snowflake ID.
+     */
+    @PostConstruct
+    private void init() {
+        if (MODE_SNOWFLAKE.equals(mode) && (node < 0 || node > MAX_NODE)) {
+            throw new IllegalStateException("envibe.post-id.node must be between 0 and " + MAX_NODE + ", was " + node);
+        }
+    }
+
+    /**
+     * Checks if post IDs are handed out from memory.
+     * @return True if envibe.post-id.allocator is hilo or snowflake.
+     */
+    public boolean isEnabled() {
+        return MODE_HILO.equals(mode) || MODE_SNOWFLAKE.equals(mode);
+    }
+
+    /**
+     * Returns the next free post ID. In hilo mode, a new block is reserved from the sequence when the current one is used up.
+     * @return Post ID that no other insert will use.
+     */
+    public synchronized long next() {
+        if (MODE_SNOWFLAKE.equals(mode)) return nextSnowflake();
+        if (next > last) {
+            next = jdbcTemplate.queryForObject(queryNextBlock, Long.class);
+            last = next + BLOCK_SIZE - 1;
+        }
+        return next++;
+    }
+
+    /**
+     * Recovers the creation time of a post from a snowflake ID.
+     * @param post_id Snowflake ID of the post.
+     * @return Creation time in milliseconds since the Unix epoch.
+     */
+    public static long timestampOf(long post_id) {
+        return (post_id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /**
+     * Builds the next snowflake ID. Waits for the next millisecond if this one has run out of sequence numbers, and for the
+     * clock to catch up if it was set back, so IDs never repeat and never go backwards.
+     * @return Snowflake ID.
+     */
+    private long nextSnowflake() {
+        long millis = System.currentTimeMillis() - EPOCH;
+        if (millis < lastMillis) millis = waitUntil(lastMillis);
+        if (millis == lastMillis) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) millis = waitUntil(lastMillis + 1);
+        } else {
+            sequence = 0;
+        }
+        lastMillis = millis;
+        return (millis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * Spins until the clock reaches a millisecond.
+     * @param millis Millisecond to wait for, relative to {@link PostIdAllocator#EPOCH}.
+     * @return Current millisecond relative to {@link PostIdAllocator#EPOCH}, at least millis.
+     */
+    private static long waitUntil(long millis) {
+        long now = System.currentTimeMillis() - EPOCH;
+        while (now < millis) {
+            Thread.yield();
+            now = System.currentTimeMillis() - EPOCH;
+        }
+        return now;
+    }
+}
@@ -0,0 +1,284 @@
+package com.envibe.envibe.dao;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Repository;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Data access object for the social graph in the temporary datastore. Every user has a Redis set of the users they follow
+ * ({@link CachedItemDao#PURPOSE_FOLLOWING}) and a Redis set of the users that follow them ({@link CachedItemDao#PURPOSE_FOLLOWERS}),
+ * so follow checks, mutual follows and counts are answered with SISMEMBER, SINTER and SCARD. Redis deletes empty sets, so every
+ * loaded set also holds a sentinel member, which tells a user without relationships apart from a set that was never loaded.
+ * <p>
+ * Sets are loaded on demand by {@link com.envibe.envibe.service.SocialGraphService} and kept up to date by {@link FriendDao} on
+ * every follow and unfollow. While a set is loading it holds a token instead of the sentinel. A follow or unfollow that arrives
+ * during a load may or may not be in the snapshot the load read, so it deletes the set instead, and the load is abandoned.
+ * The next read loads the set again. Loaded sets expire so that sets of inactive users don't stay in memory forever.
+ *
+ * @author ARMmaster17
+ */
+@Repository
+public class SocialGraphCacheDao {
+
+    /**
+     * Member that marks a set as completely loaded. Not a valid username, so it never collides with a real member.
+     */
+    static final String SENTINEL = "";
+
+    /**
+     * Prefix of the member that marks a set as being loaded, followed by a token unique to the load. Usernames cannot contain it.
+     * See {@link com.envibe.envibe.model.validation.validator.UsernameValidator}.
+     */
+    static final String LOADING_PREFIX = CachedItemDao.TAG_SPLITTER;
+
+    /**
+     * Adds or removes a member of every given set that is loaded. A set that is being loaded is deleted instead, since the load
+     * may have read the persistent datastore before the change. Sets that don't exist are left alone.
+     * KEYS: sets. ARGV: 'add' or 'remove', then the member of every set in the same order.
+     */
+    private static final RedisScript<Long> scriptWrite = new DefaultRedisScript<>(
+            "for i = 1, #KEYS do " +
+                "if redis.call('SISMEMBER', KEYS[i], '" + SENTINEL + "') == 1 then " +
+                    "if ARGV[1] == 'add' then redis.call('SADD', KEYS[i], ARGV[i + 1]) else redis.call('SREM', KEYS[i], ARGV[i + 1]) end " +
+                "elseif redis.call('EXISTS', KEYS[i]) == 1 then " +
+                    "redis.call('DEL', KEYS[i]) " +
+                "end " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * Replaces a set with an empty one that is being loaded. The time-to-live cleans up after loads that never finish.
+     * KEYS: set. ARGV: loading member, time-to-live in seconds.
+     */
+    private static final RedisScript<Long> scriptBeginLoad = new DefaultRedisScript<>(
+            "redis.call('DEL', KEYS[1]) " +
+            "redis.call('SADD', KEYS[1], ARGV[1]) " +
+            "redis.call('EXPIRE', KEYS[1], ARGV[2]) " +
+            "return 0", Long.class);
+
+    /**
+     * Adds a chunk of members to a set that is being loaded, unless the load was abandoned or taken over since it began.
+     * KEYS: set. ARGV: loading member, then members. Returns 1 if the members were added.
+     */
+    private static final RedisScript<Long> scriptLoadChunk = new DefaultRedisScript<>(
+            "if redis.call('SISMEMBER', KEYS[1], ARGV[1]) == 0 then return 0 end " +
+            "for i = 2, #ARGV do redis.call('SADD', KEYS[1], ARGV[i]) end " +
+            "return 1", Long.class);
+
+    /**
+     * Fills a set and marks it as loaded, unless the load was abandoned or taken over by another load since it began.
+     * KEYS: set. ARGV: loading member, time-to-live in seconds, then members. Returns 1 if the set was loaded.
+     */
+    private static final RedisScript<Long> scriptFinishLoad = new DefaultRedisScript<>(
+            "if redis.call('SISMEMBER', KEYS[1], ARGV[1]) == 0 then return 0 end " +
+            "for i = 3, #ARGV do redis.call('SADD', KEYS[1], ARGV[i]) end " +
+            "redis.call('SREM', KEYS[1], ARGV[1]) " +
+            "redis.call('SADD', KEYS[1], '" + SENTINEL + "') " +
+            "redis.call('EXPIRE', KEYS[1], ARGV[2]) " +
+            "return 1", Long.class);
+
+    /**
+     * Checks if a loaded set holds a member.
+     * KEYS: set. ARGV: member. Returns 1 or 0, or -1 if the set is not loaded.
+     */
+    private static final RedisScript<Long> scriptIsMember = new DefaultRedisScript<>(
+            "if redis.call('SISMEMBER', KEYS[1], '" + SENTINEL + "') == 0 then return -1 end " +
+            "return redis.call('SISMEMBER', KEYS[1], ARGV[1])", Long.class);
+
+    /**
+     * Counts the members of a loaded set, leaving out the sentinel.
+     * KEYS: set. Returns the count, or -1 if the set is not loaded.
+     */
+    private static final RedisScript<Long> scriptCount = new DefaultRedisScript<>(
+            "if redis.call('SISMEMBER', KEYS[1], '" + SENTINEL + "') == 0 then return -1 end " +
+            "return redis.call('SCARD', KEYS[1]) - 1", Long.class);
+
+    /**
+     * Intersects two loaded sets. Both hold the sentinel, so it is part of the result.
+     * KEYS: sets. Returns the common members, or nil if either set is not loaded.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> scriptIntersect = new DefaultRedisScript<>(
+            "for i = 1, #KEYS do " +
+                "if redis.call('SISMEMBER', KEYS[i], '" + SENTINEL + "') == 0 then return false end " +
+            "end " +
+            "return redis.call('SINTER', unpack(KEYS))", List.class);
+
+    /**
+     * Injected Redis connection object for plain String structures. See {@link StringRedisTemplate}.
+     */
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Injected data access object used to generate tags that follow the PURPOSE|USER schema.
+     */
+    @Autowired
+    private CachedItemDao cachedItemDao;
+
+    /**
+     * Number of seconds a loaded set lives before it has to be loaded again.
+     */
+    @Value("${envibe.graph.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    /**
+     * Records a new relationship in the follower's following set and the followee's followers set, where they are loaded.
+     * @param follower User that followed.
+     * @param followee User that was followed.
+     */
+    public void addRelationship(@NotNull String follower, @NotNull String followee) {
+        write("add", follower, followee);
+    }
+
+    /**
+     * Removes a relationship from the follower's following set and the followee's followers set, where they are loaded.
+     * @param follower User that unfollowed.
+     * @param followee User that was unfollowed.
+     */
+    public void removeRelationship(@NotNull String follower, @NotNull String followee) {
+        write("remove", follower, followee);
+    }
+
+    /**
+     * Returns every member of a set in a single round trip.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username User that owns the set.
+     * @return Usernames in no particular order, or null if the set is not loaded.
+     */
+    public List<String> readMembers(@NotNull String purpose, @NotNull String username) {
+        Set<String> members = stringRedisTemplate.opsForSet().members(tag(purpose, username));
+        if (members == null || !members.contains(SENTINEL)) return null;
+        List<String> usernames = new ArrayList<>(members);
+        usernames.remove(SENTINEL);
+        return usernames;
+    }
+
+    /**
+     * Checks if a set holds a user with SISMEMBER.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username User that owns the set.
+     * @param member User to look for.
+     * @return True or false, or null if the set is not loaded.
+     */
+    public Boolean isMember(@NotNull String purpose, @NotNull String username, @NotNull String member) {
+        Objects.requireNonNull(member, "Method argument member cannot be null");
+        Long found = stringRedisTemplate.execute(scriptIsMember, Collections.singletonList(tag(purpose, username)), member);
+        if (found == null || found < 0) return null;
+        return found == 1;
+    }
+
+    /**
+     * Counts the members of a set with SCARD.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username User that owns the set.
+     * @return Number of users in the set, or null if the set is not loaded.
+     */
+    public Long count(@NotNull String purpose, @NotNull String username) {
+        Long count = stringRedisTemplate.execute(scriptCount, Collections.singletonList(tag(purpose, username)));
+        return count == null || count < 0 ? null : count;
+    }
+
+    /**
+     * Finds the users that are in the sets of two users with SINTER.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username First user.
+     * @param otherUsername Second user.
+     * @return Usernames in both sets, in no particular order, or null if either set is not loaded.
+     */
+    public List<String> intersect(@NotNull String purpose, @NotNull String username, @NotNull String otherUsername) {
+        @SuppressWarnings("unchecked")
+        List<String> common = stringRedisTemplate.execute(scriptIntersect, Arrays.asList(tag(purpose, username), tag(purpose, otherUsername)));
+        if (common == null) return null;
+        List<String> usernames = new ArrayList<>(common);
+        usernames.remove(SENTINEL);
+        return usernames;
+    }
+
+    /**
+     * Starts loading a set. The persistent datastore must be read after this call, so that every follow and unfollow that the
+     * read may have missed abandons the load.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username User that owns the set.
+     * @return Token of the load. See {@link SocialGraphCacheDao#finishLoad(String, String, String, Collection)}.
+     */
+    public String beginLoad(@NotNull String purpose, @NotNull String username) {
+        String token = LOADING_PREFIX + UUID.randomUUID();
+        stringRedisTemplate.execute(scriptBeginLoad, Collections.singletonList(tag(purpose, username)), token, Long.toString(ttlSeconds));
+        return token;
+    }
+
+    /**
+     * Adds a chunk of what was read from the persistent datastore to a set that is being loaded, for sets too large to load at once.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username User that owns the set.
+     * @param token Token returned by {@link SocialGraphCacheDao#beginLoad(String, String)}.
+     * @param members Usernames to add.
+     * @return True if the load is still going, false if a follow or unfollow or another load got in between.
+     */
+    public boolean addLoadChunk(@NotNull String purpose, @NotNull String username, @NotNull String token, @NotNull Collection<String> members) {
+        Objects.requireNonNull(token, "Method argument token cannot be null");
+        Objects.requireNonNull(members, "Method argument members cannot be null");
+        List<String> args = new ArrayList<>(members.size() + 1);
+        args.add(token);
+        args.addAll(members);
+        return Long.valueOf(1).equals(stringRedisTemplate.execute(scriptLoadChunk, Collections.singletonList(tag(purpose, username)), args.toArray()));
+    }
+
+    /**
+     * Fills a set with what was read from the persistent datastore and marks it as loaded in a single round trip.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username User that owns the set.
+     * @param token Token returned by {@link SocialGraphCacheDao#beginLoad(String, String)}.
+     * @param members Usernames to add on top of the chunks that were added already. May be empty.
+     * @return True if the set was loaded, false if a follow or unfollow or another load got in between.
+     */
+    public boolean finishLoad(@NotNull String purpose, @NotNull String username, @NotNull String token, @NotNull Collection<String> members) {
+        Objects.requireNonNull(token, "Method argument token cannot be null");
+        Objects.requireNonNull(members, "Method argument members cannot be null");
+        List<String> args = new ArrayList<>(members.size() + 2);
+        args.add(token);
+        args.add(Long.toString(ttlSeconds));
+        args.addAll(members);
+        return Long.valueOf(1).equals(stringRedisTemplate.execute(scriptFinishLoad, Collections.singletonList(tag(purpose, username)), args.toArray()));
+    }
+
+    /**
+     * Writes a follow or unfollow through to both sets it touches in a single round trip.
+     * @param operation 'add' or 'remove'.
+     * @param follower User that followed or unfollowed.
+     * @param followee User that was followed or unfollowed.
+     */
+    private void write(String operation, String follower, String followee) {
+        Objects.requireNonNull(followee, "Method argument followee cannot be null");
+        Objects.requireNonNull(follower, "Method argument follower cannot be null");
+        stringRedisTemplate.execute(scriptWrite,
+                Arrays.asList(tag(CachedItemDao.PURPOSE_FOLLOWING, follower), tag(CachedItemDao.PURPOSE_FOLLOWERS, followee)),
+                operation, followee, follower);
+    }
+
+    /**
+     * Generates the Redis key of a set.
+     * @param purpose {@link CachedItemDao#PURPOSE_FOLLOWING} or {@link CachedItemDao#PURPOSE_FOLLOWERS}.
+     * @param username User that owns the set.
+     * @return Key that follows the PURPOSE|USER schema.
+     */
+    private String tag(String purpose, String username) {
+        Objects.requireNonNull(purpose, "Method argument purpose cannot be null");
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        return cachedItemDao.generateTag(purpose, username);
+    }
+}
@@ -2,17 +2,30 @@ package com.envibe.envibe.dao;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.core.parameters.P;
 import org.springframework.stereotype.Repository;
+import com.envibe.envibe.dto.AuthorDto;
 import com.envibe.envibe.model.User;
+import com.envibe.envibe.rowmapper.AuthorRowMapper;
 import com.envibe.envibe.rowmapper.UserRowMapper;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
-import java.util.ArrayList;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Data access object for Users that are stored in a permanent JDBC-compatible datastore. Utilizes CRUD model.
@@ -28,6 +41,12 @@ public class UserDao {
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
+    /**
+     * Injected data access object for cached feed entries. Author cards and entries are invalidated whenever a profile changes.
+     */
+    @Autowired
+    private FeedEntryCacheDao feedEntryCacheDao;
+
     /**
      * Prepared query to insert user records into database.
      */
@@ -41,7 +60,25 @@ public class UserDao {
                                         "WHERE user_name = ? " +
                                         "LIMIT 1";
 
-    private final String queryReadAll = "SELECT * FROM user_account";
+    /**
+     * Prepared query to read every user record in database, in username order.
+     */
+    private final String queryReadAll = "SELECT * FROM user_account ORDER BY user_name";
+
+    /**
+     * Prepared query to read one page of user records that come after a username, in username order. Served by the primary key.
+     * Package-private so the query plan tests explain the query that runs.
+     */
+    static final String queryReadPage = "SELECT * FROM user_account " +
+                                        "WHERE user_name > ? " +
+                                        "ORDER BY user_name " +
+                                        "LIMIT ?";
+
+    /**
+     * Prefix of the query to load the display fields of many users at once. Followed by one placeholder per username and a closing parenthesis.
+     */
+    private final String queryReadAuthorsPrefix = "SELECT user_name, first_name, last_name, image_link FROM user_account " +
+                                                    "WHERE user_name IN (";
 
     /**
      * Prepared query to update user records in database.
@@ -87,6 +124,25 @@ public class UserDao {
         }
     }
 
+    /**
+     * Loads the display fields of every specified user in a single query. Duplicate usernames are only looked up once.
+     * @param usernames Usernames to search for.
+     * @return Map of username to display fields. Usernames that do not exist are left out.
+     */
+    public Map<String, AuthorDto> readAuthors(@NotNull Collection<String> usernames) {
+        Objects.requireNonNull(usernames, "Method argument usernames cannot be null");
+        Map<String, AuthorDto> authors = new HashMap<>();
+        // Remove duplicates so that a page full of posts by one author only asks for that author once.
+        Set<String> distinct = new LinkedHashSet<>(usernames);
+        if (distinct.isEmpty()) return authors;
+        String placeholders = String.join(",", Collections.nCopies(distinct.size(), "?"));
+        List<AuthorDto> found = jdbcTemplate.query(queryReadAuthorsPrefix + placeholders + ")", new AuthorRowMapper(), distinct.toArray());
+        for (AuthorDto author : found) {
+            authors.put(author.getUsername(), author);
+        }
+        return authors;
+    }
+
     /**
      * Updates the core account information for the specified user. Note that the username must be the same as the original record.
      * @param user Pre-validated user model object to replace existing record in permanent datastore.
@@ -95,6 +151,8 @@ public class UserDao {
         Objects.requireNonNull(user, "Method argument user cannot be null");
         // TODO: Catch EmptyResultDataAccessExceptions.
         jdbcTemplate.update(queryUpdate, user.getPassword(), user.getEmail(), user.getRole(), user.getCountry(), user.getBirthday(), user.getLast_name(), user.getFirst_name(), user.getImage_link(), user.getUsername());
+        // Drop the cached author card and every cached entry that holds a copy of it.
+        feedEntryCacheDao.invalidateAuthor(user.getUsername());
     }
 
     /**
@@ -106,11 +164,103 @@ public class UserDao {
         jdbcTemplate.update(queryDelete, user.getUsername());
     }
 
+    /**
+     * Loads every user record in the permanent datastore.
+     * @return List of all users, in username order.
+     * @deprecated Holds the whole table in memory. Use {@link UserDao#streamAll(int, Consumer)} or
+     * {@link UserDao#readAll(int, Consumer)} instead.
+     */
+    @Deprecated
     public List<User> readAll() {
+        return jdbcTemplate.query(queryReadAll, new UserRowMapper());
+    }
+
+    /**
+     * Streams every user record to a consumer over a single cursor, in username order. Rows are fetched from the database in
+     * chunks of fetchSize, so the users never have to fit in memory at once. Holds one connection and a read-only transaction
+     * until the last user has been consumed, so consumers should be quick. Use {@link UserDao#readAll(int, Consumer)} for slow ones.
+     * An exception thrown by the consumer reaches the caller even if the cleanup of the transaction fails as well.
+     * @param fetchSize Number of rows fetched per round trip.
+     * @param consumer Called once per user.
+     */
+    public void streamAll(int fetchSize, @NotNull Consumer<User> consumer) {
+        Objects.requireNonNull(consumer, "Method argument consumer cannot be null");
+        jdbcTemplate.execute((ConnectionCallback<Object>) connection -> {
+            // PostgreSQL ignores the fetch size and loads the whole result unless it runs inside a transaction. The read-only
+            // flag has to be set before the transaction begins.
+            boolean autoCommit = connection.getAutoCommit();
+            boolean readOnly = connection.isReadOnly();
+            connection.setReadOnly(true);
+            connection.setAutoCommit(false);
+            Throwable failure = null;
+            try (PreparedStatement statement = connection.prepareStatement(queryReadAll)) {
+                statement.setFetchSize(fetchSize);
+                UserRowMapper rowMapper = new UserRowMapper();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    int rowNum = 0;
+                    while (resultSet.next()) {
+                        consumer.accept(rowMapper.mapRow(resultSet, rowNum++));
+                    }
+                }
+            } catch (Throwable e) {
+                failure = e;
+                throw e;
+            } finally {
+                endReadOnlyTransaction(connection, autoCommit, readOnly, failure);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Rolls back a read-only transaction and restores the connection settings it changed. If the transaction failed, problems
+     * during the cleanup are attached to that failure instead of replacing it, so the caller sees why the read failed.
+     * @param connection Connection that ran the transaction.
+     * @param autoCommit Auto-commit setting to restore.
+     * @param readOnly Read-only setting to restore.
+     * @param failure Exception that ended the transaction, or null if it succeeded.
+     * @throws SQLException If the cleanup failed after a successful transaction.
+     */
+    private static void endReadOnlyTransaction(Connection connection, boolean autoCommit, boolean readOnly, Throwable failure) throws SQLException {
         try {
-            return jdbcTemplate.query(queryReadAll, new UserRowMapper());
-        } catch (Exception e) {
-            return new ArrayList<User>();
+            // The transaction only read rows, so there is nothing to keep.
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+            connection.setReadOnly(readOnly);
+        } catch (SQLException | RuntimeException e) {
+            if (failure == null) throw e;
+            failure.addSuppressed(e);
         }
     }
+
+    /**
+     * Streams every user record to a consumer, chunkSize users at a time, in username order. Every chunk is a separate query keyed
+     * on the last username of the previous chunk, so no connection is held between chunks and every chunk costs the same no matter
+     * how deep into the table it is. Users created or deleted while the job runs may or may not be seen.
+     * @param chunkSize Number of users per chunk.
+     * @param consumer Called once per chunk.
+     */
+    public void readAll(int chunkSize, @NotNull Consumer<List<User>> consumer) {
+        Objects.requireNonNull(consumer, "Method argument consumer cannot be null");
+        String after = "";
+        while (true) {
+            List<User> chunk = readPage(after, chunkSize);
+            if (chunk.isEmpty()) return;
+            consumer.accept(chunk);
+            // A short chunk is the last one, so skip the query that would come back empty.
+            if (chunk.size() < chunkSize) return;
+            after = chunk.get(chunk.size() - 1).getUsername();
+        }
+    }
+
+    /**
+     * Loads one page of user records. Start with an empty username and pass the last username of every page to get the next one.
+     * @param after Last username of the previous page.
+     * @param limit Maximum number of users to return.
+     * @return List of users that come after the given username, in username order.
+     */
+    public List<User> readPage(@NotNull String after, int limit) {
+        Objects.requireNonNull(after, "Method argument after cannot be null");
+        return jdbcTemplate.query(queryReadPage, new UserRowMapper(), after, limit);
+    }
 }
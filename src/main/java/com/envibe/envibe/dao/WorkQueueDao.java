@@ -0,0 +1,364 @@
+package com.envibe.envibe.dao;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Repository;
+
+import javax.validation.constraints.NotNull;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Data access object for durable work queues that are stored as Redis lists. Messages move from a pending list to a processing
+ * list when they are claimed, and only leave the processing list when they are acknowledged, retried, or dead-lettered. This gives
+ * at-least-once delivery that survives an application restart. Every instance claims into its own processing list, named after
+ * a worker identity that is unique to the running process, and holds a lease on it that it renews while it is alive. Any
+ * instance moves the processing lists of expired leases back to the pending list, so messages of instances that crashed or
+ * never come back are processed again, while messages that live instances are still working on are left alone.
+ * <p>
+ * Changes that pile up faster than they are processed can be collected into batches, which are Redis hashes of entries that are
+ * handled together by a single message. Entries with the same key replace each other, and a batch is only queued once however
+ * many entries are added to it before a consumer opens it.
+ *
+ * @author ARMmaster17
+ */
+@Repository
+public class WorkQueueDao {
+
+    /**
+     * Sub-tag of the list that holds messages waiting to be claimed.
+     */
+    public static final String TAG_PENDING = "PENDING";
+
+    /**
+     * Sub-tag of the lists that hold messages that have been claimed but not yet acknowledged, followed by the worker identity
+     * of the instance that claimed them.
+     */
+    public static final String TAG_PROCESSING = "PROCESSING";
+
+    /**
+     * Sub-tag of the list that holds messages that failed too many times.
+     */
+    public static final String TAG_DEAD = "DEAD";
+
+    /**
+     * Sub-tag of the hash that counts failed attempts per message.
+     */
+    public static final String TAG_ATTEMPTS = "ATTEMPTS";
+
+    /**
+     * Sub-tag of the sorted set of worker identities scored by the time their lease was last renewed.
+     */
+    public static final String TAG_LEASES = "LEASES";
+
+    /**
+     * Sub-tag of the hashes that collect the entries of a batch, followed by the name of the batch.
+     */
+    public static final String TAG_BATCH = "BATCH";
+
+    /**
+     * Key of the batch hash field that is set while a message for the batch is waiting in the pending list. Batch entries cannot use it.
+     */
+    static final String BATCH_QUEUED = "";
+
+    /**
+     * Removes a finished message from the processing list and forgets its attempt counter.
+     * KEYS: processing, attempts. ARGV: message.
+     */
+    private static final RedisScript<Long> scriptAcknowledge = new DefaultRedisScript<>(
+            "redis.call('HDEL', KEYS[2], ARGV[1]) " +
+            "return redis.call('LREM', KEYS[1], 1, ARGV[1])", Long.class);
+
+    /**
+     * Moves a failed message back to the pending list, or to the dead-letter list once it has used up its attempts.
+     * KEYS: processing, pending, dead, attempts. ARGV: message, max attempts. Returns 1 if the message will be retried.
+     */
+    private static final RedisScript<Long> scriptRetry = new DefaultRedisScript<>(
+            "redis.call('LREM', KEYS[1], 1, ARGV[1]) " +
+            "local attempts = redis.call('HINCRBY', KEYS[4], ARGV[1], 1) " +
+            "if attempts >= tonumber(ARGV[2]) then " +
+                "redis.call('HDEL', KEYS[4], ARGV[1]) " +
+                "redis.call('LPUSH', KEYS[3], ARGV[1]) " +
+                "return 0 " +
+            "end " +
+            "redis.call('LPUSH', KEYS[2], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * Moves the processing list of every worker whose lease expired back to the pending list and forgets the lease. The
+     * processing lists are named from the lease members, so they cannot be passed in as KEYS.
+     * KEYS: leases, pending. ARGV: cutoff in milliseconds since the epoch, key prefix of the processing lists. Returns the
+     * number of messages moved.
+     */
+    private static final RedisScript<Long> scriptRecoverExpired = new DefaultRedisScript<>(
+            "local moved = 0 " +
+            "for _, worker in ipairs(redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', '(' .. ARGV[1])) do " +
+                "while redis.call('RPOPLPUSH', ARGV[2] .. worker, KEYS[2]) do moved = moved + 1 end " +
+                "redis.call('ZREM', KEYS[1], worker) " +
+            "end " +
+            "return moved", Long.class);
+
+    /**
+     * Moves every message in the processing list of a worker back to the pending list and gives up its lease.
+     * KEYS: leases, processing, pending. ARGV: worker identity. Returns the number of messages moved.
+     */
+    private static final RedisScript<Long> scriptRelease = new DefaultRedisScript<>(
+            "local moved = 0 " +
+            "while redis.call('RPOPLPUSH', KEYS[2], KEYS[3]) do moved = moved + 1 end " +
+            "redis.call('ZREM', KEYS[1], ARGV[1]) " +
+            "return moved", Long.class);
+
+    /**
+     * Adds entries to a batch, replacing entries with the same key, and queues the message of the batch unless it is already
+     * waiting in the pending list.
+     * KEYS: batch, pending. ARGV: message, then pairs of entry key and value. Returns 1 if the message was queued.
+     */
+    private static final RedisScript<Long> scriptAddToBatch = new DefaultRedisScript<>(
+            "for i = 2, #ARGV, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "if redis.call('HSETNX', KEYS[1], '" + BATCH_QUEUED + "', '1') == 0 then return 0 end " +
+            "redis.call('LPUSH', KEYS[2], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * Marks the message of a batch as no longer waiting, so entries added from now on queue it again, and returns the entries.
+     * KEYS: batch. Returns pairs of entry key and value.
+     */
+    private static final RedisScript<List> scriptOpenBatch = new DefaultRedisScript<>(
+            "redis.call('HDEL', KEYS[1], '" + BATCH_QUEUED + "') " +
+            "return redis.call('HGETALL', KEYS[1])", List.class);
+
+    /**
+     * Removes handled entries from a batch, unless they were replaced since the batch was opened.
+     * KEYS: batch. ARGV: pairs of entry key and the value that was handled.
+     */
+    private static final RedisScript<Long> scriptCloseBatch = new DefaultRedisScript<>(
+            "for i = 1, #ARGV, 2 do " +
+                "if redis.call('HGET', KEYS[1], ARGV[i]) == ARGV[i + 1] then redis.call('HDEL', KEYS[1], ARGV[i]) end " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * Injected Redis connection object for plain String structures. See {@link StringRedisTemplate}.
+     */
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Injected data access object used to generate tags that follow the PURPOSE|SUBTAG schema.
+     */
+    @Autowired
+    private CachedItemDao cachedItemDao;
+
+    /**
+     * Worker identity of this instance, which names its processing lists and leases. Made of the host name and a random suffix,
+     * so it is unique even when several instances run on the same host or an instance restarts.
+     */
+    private final String workerId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+    /**
+     * Adds a message to the back of a queue.
+     * @param queue Purpose tag of the queue. See the static fields of {@link CachedItemDao} for valid values.
+     * @param message Message to deliver to a consumer.
+     */
+    public void enqueue(@NotNull String queue, @NotNull String message) {
+        Objects.requireNonNull(message, "Method argument message cannot be null");
+        stringRedisTemplate.opsForList().leftPush(tag(queue, TAG_PENDING), message);
+    }
+
+    /**
+     * Adds entries to a batch and queues the message that handles the batch, unless that message is already waiting. The
+     * consumer of the message reads the entries with {@link WorkQueueDao#openBatch(String, String)}.
+     * @param queue Purpose tag of the queue.
+     * @param batch Name of the batch.
+     * @param message Message that makes a consumer handle the batch.
+     * @param entries Entries to add, keyed by what they replace.
+     * @return True if the message was queued, false if it was already waiting.
+     */
+    public boolean enqueueBatch(@NotNull String queue, @NotNull String batch, @NotNull String message, @NotNull Map<String, String> entries) {
+        Objects.requireNonNull(batch, "Method argument batch cannot be null");
+        Objects.requireNonNull(message, "Method argument message cannot be null");
+        Objects.requireNonNull(entries, "Method argument entries cannot be null");
+        if (entries.containsKey(BATCH_QUEUED)) throw new IllegalArgumentException("Batch entry keys cannot be empty");
+        List<String> args = new ArrayList<>();
+        args.add(message);
+        entries.forEach((key, value) -> {
+            args.add(key);
+            args.add(value);
+        });
+        Long queued = stringRedisTemplate.execute(scriptAddToBatch, Arrays.asList(batchTag(queue, batch), tag(queue, TAG_PENDING)), args.toArray());
+        return queued != null && queued == 1;
+    }
+
+    /**
+     * Reads the entries of a batch for handling. Entries added after this call queue the message of the batch again, so they are
+     * handled by a later message even if this one already read them. Entries stay in the batch until they are closed, so a
+     * message that fails and is retried reads them again.
+     * @param queue Purpose tag of the queue.
+     * @param batch Name of the batch.
+     * @return Entries of the batch, keyed by what they replace. Empty if a previous message already handled them.
+     */
+    public Map<String, String> openBatch(@NotNull String queue, @NotNull String batch) {
+        Objects.requireNonNull(batch, "Method argument batch cannot be null");
+        @SuppressWarnings("unchecked")
+        List<String> pairs = stringRedisTemplate.execute(scriptOpenBatch, Collections.singletonList(batchTag(queue, batch)));
+        Map<String, String> entries = new LinkedHashMap<>();
+        if (pairs == null) return entries;
+        for (int i = 0; i + 1 < pairs.size(); i += 2) {
+            entries.put(pairs.get(i), pairs.get(i + 1));
+        }
+        return entries;
+    }
+
+    /**
+     * Removes the entries that were handled from a batch. Entries that were replaced since the batch was opened are kept for the
+     * next message.
+     * @param queue Purpose tag of the queue.
+     * @param batch Name of the batch.
+     * @param entries Entries returned by {@link WorkQueueDao#openBatch(String, String)}.
+     */
+    public void closeBatch(@NotNull String queue, @NotNull String batch, @NotNull Map<String, String> entries) {
+        Objects.requireNonNull(batch, "Method argument batch cannot be null");
+        Objects.requireNonNull(entries, "Method argument entries cannot be null");
+        if (entries.isEmpty()) return;
+        List<String> args = new ArrayList<>();
+        entries.forEach((key, value) -> {
+            args.add(key);
+            args.add(value);
+        });
+        stringRedisTemplate.execute(scriptCloseBatch, Collections.singletonList(batchTag(queue, batch)), args.toArray());
+    }
+
+    /**
+     * Waits for the next message of a queue and moves it to the processing list of this instance in the same operation.
+     * @param queue Purpose tag of the queue.
+     * @param timeout How long to block if the queue is empty.
+     * @param unit Unit of timeout.
+     * @return The claimed message, or null if the timeout expired.
+     */
+    public String claim(@NotNull String queue, long timeout, @NotNull TimeUnit unit) {
+        return stringRedisTemplate.opsForList().rightPopAndLeftPush(tag(queue, TAG_PENDING), processingTag(queue), timeout, unit);
+    }
+
+    /**
+     * Marks a claimed message as done.
+     * @param queue Purpose tag of the queue.
+     * @param message Message returned by {@link WorkQueueDao#claim(String, long, TimeUnit)}.
+     */
+    public void acknowledge(@NotNull String queue, @NotNull String message) {
+        Objects.requireNonNull(message, "Method argument message cannot be null");
+        stringRedisTemplate.execute(scriptAcknowledge, Arrays.asList(processingTag(queue), tag(queue, TAG_ATTEMPTS)), message);
+    }
+
+    /**
+     * Marks a claimed message as failed. The message is queued again until it has failed maxAttempts times, then it is moved to the dead-letter list.
+     * @param queue Purpose tag of the queue.
+     * @param message Message returned by {@link WorkQueueDao#claim(String, long, TimeUnit)}.
+     * @param maxAttempts Number of failures before the message is dead-lettered.
+     * @return True if the message will be retried, false if it was dead-lettered.
+     */
+    public boolean retry(@NotNull String queue, @NotNull String message, int maxAttempts) {
+        Objects.requireNonNull(message, "Method argument message cannot be null");
+        Long retried = stringRedisTemplate.execute(scriptRetry,
+                Arrays.asList(processingTag(queue), tag(queue, TAG_PENDING), tag(queue, TAG_DEAD), tag(queue, TAG_ATTEMPTS)),
+                message, Integer.toString(maxAttempts));
+        return retried != null && retried == 1;
+    }
+
+    /**
+     * Takes out or renews the lease of this instance on its processing list. Must be called before the first claim and then
+     * well within every lease duration for as long as the instance is alive.
+     * @param queue Purpose tag of the queue.
+     */
+    public void renewLease(@NotNull String queue) {
+        stringRedisTemplate.opsForZSet().add(tag(queue, TAG_LEASES), workerId, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns every message that was claimed by an instance whose lease was not renewed for a while to the pending list, so
+     * that messages that were in flight when an instance died are processed again. Messages claimed by instances that are
+     * still alive are left alone.
+     * @param queue Purpose tag of the queue.
+     * @param leaseMillis How long a lease lasts without being renewed.
+     * @return Number of recovered messages.
+     */
+    public long recoverExpired(@NotNull String queue, long leaseMillis) {
+        Long moved = stringRedisTemplate.execute(scriptRecoverExpired, Arrays.asList(tag(queue, TAG_LEASES), tag(queue, TAG_PENDING)),
+                Long.toString(System.currentTimeMillis() - leaseMillis), tag(queue, TAG_PROCESSING + CachedItemDao.TAG_SPLITTER));
+        return moved == null ? 0 : moved;
+    }
+
+    /**
+     * Returns every message that this instance claimed but did not acknowledge to the pending list and gives up its lease.
+     * Called once the instance stopped claiming and its workers have finished, so nothing is left waiting for the lease to expire.
+     * @param queue Purpose tag of the queue.
+     * @return Number of returned messages.
+     */
+    public long release(@NotNull String queue) {
+        Long moved = stringRedisTemplate.execute(scriptRelease,
+                Arrays.asList(tag(queue, TAG_LEASES), processingTag(queue), tag(queue, TAG_PENDING)), workerId);
+        return moved == null ? 0 : moved;
+    }
+
+    /**
+     * Returns the number of messages in one of the lists of a queue.
+     * @param queue Purpose tag of the queue.
+     * @param state One of TAG_PENDING, TAG_PROCESSING, or TAG_DEAD. TAG_PROCESSING counts the messages of this instance only.
+     * @return Length of the list.
+     */
+    public long size(@NotNull String queue, @NotNull String state) {
+        Long size = stringRedisTemplate.opsForList().size(TAG_PROCESSING.equals(state) ? processingTag(queue) : tag(queue, state));
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * Generates the Redis key of one of the lists of a queue.
+     * @param queue Purpose tag of the queue.
+     * @param state Sub-tag of the list.
+     * @return Key that follows the PURPOSE|SUBTAG schema.
+     */
+    private String tag(String queue, String state) {
+        return cachedItemDao.generateTag(queue, state);
+    }
+
+    /**
+     * Generates the Redis key of the processing list of this instance.
+     * @param queue Purpose tag of the queue.
+     * @return Key that follows the PURPOSE|SUBTAG schema.
+     */
+    private String processingTag(String queue) {
+        return tag(queue, TAG_PROCESSING + CachedItemDao.TAG_SPLITTER + workerId);
+    }
+
+    /**
+     * Generates the Redis key of the hash of a batch.
+     * @param queue Purpose tag of the queue.
+     * @param batch Name of the batch.
+     * @return Key that follows the PURPOSE|SUBTAG schema.
+     */
+    private String batchTag(String queue, String batch) {
+        return tag(queue, TAG_BATCH + CachedItemDao.TAG_SPLITTER + batch);
+    }
+
+    /**
+     * Looks up the name of the host this instance runs on.
+     * @return Host name, or unknown if it cannot be resolved.
+     */
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.envibe.envibe.dto;
+
+import java.io.Serializable;
+
+/**
+ * Display fields of a user that are shown next to each of their posts. Loaded by {@link com.envibe.envibe.dao.UserDao#readAuthors(java.util.Collection)}
+ * so that feed pages do not need to load full user records.
+ *
+ * @author ARMmaster17
+ */
+public class AuthorDto implements Serializable {
+    private String username;
+    private String first_name;
+    private String last_name;
+    private String image_link;
+    public AuthorDto() {
+
+    }
+    public AuthorDto(String username, String first_name, String last_name, String image_link) {
+        this.username = username;
+        this.first_name = first_name;
+        this.last_name = last_name;
+        this.image_link = image_link;
+    }
+    public String getUsername() {return username;}
+    public void setUsername(String username) {this.username = username;}
+    public String getFirst_name() {return first_name;}
+    public void setFirst_name(String first_name) {this.first_name = first_name;}
+    public String getLast_name() {return last_name;}
+    public void setLast_name(String last_name) {this.last_name = last_name;}
+    public String getImage_link() {return image_link;}
+    public void setImage_link(String image_link) {this.image_link = image_link;}
+    /**
+     * Name shown on the author's posts.
+     * @return First and last name separated by a space.
+     */
+    public String getVisibleName() {return first_name + " " + last_name;}
+}
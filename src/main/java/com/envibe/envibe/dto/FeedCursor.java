@@ -0,0 +1,126 @@
+package com.envibe.envibe.dto;
+
+import com.envibe.envibe.exception.InvalidFeedCursorException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Position of a post in a news feed: the score it is sorted by and its post ID, which breaks ties between posts with the same
+ * score. Clients receive it as an opaque String and send it back to get the page that follows the post. Because the position
+ * does not depend on the rank of the post, pages stay stable while new posts are added to the top of the feed, and keep working
+ * after the post itself has been trimmed or deleted. Encoded cursors are signed with a secret key, so a cursor that a client
+ * made up or changed is rejected instead of being read as a position.
+ *
+ * @author ARMmaster17
+ */
+public class FeedCursor {
+
+    /**
+     * First byte of encoded cursors, so the format can change without old cursors being misread.
+     */
+    private static final byte VERSION = 1;
+
+    /**
+     * Length of the version, score and post ID at the start of an encoded cursor.
+     */
+    private static final int PAYLOAD_LENGTH = 1 + Long.BYTES + Long.BYTES;
+
+    /**
+     * Number of bytes of the HMAC kept at the end of an encoded cursor. Enough that guessing one takes longer than any cursor is useful.
+     */
+    private static final int SIGNATURE_LENGTH = 12;
+
+    /**
+     * Length of an encoded cursor before it is turned into base64.
+     */
+    private static final int ENCODED_LENGTH = PAYLOAD_LENGTH + SIGNATURE_LENGTH;
+
+    /**
+     * Algorithm that signs encoded cursors.
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Score that the post is sorted by. The creation time of the post in milliseconds for sorted set feeds, or the post ID for packed feeds.
+     */
+    private final long score;
+
+    /**
+     * ID of the post.
+     */
+    private final long post_id;
+
+    /**
+     * Creates a cursor.
+     * @param score Score that the post is sorted by.
+     * @param post_id ID of the post.
+     */
+    public FeedCursor(long score, long post_id) {
+        this.score = score;
+        this.post_id = post_id;
+    }
+
+    public long getScore() {return score;}
+    public long getPost_id() {return post_id;}
+
+    /**
+     * Encodes the cursor as an opaque, URL-safe String that carries a signature, so it can be checked on the way back in.
+     * @param key Secret key that signs the cursor. See {@link com.envibe.envibe.service.FeedCursorService}.
+     * @return Encoded cursor.
+     */
+    public String encode(byte[] key) {
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_LENGTH);
+        buffer.put(VERSION).putLong(score).putLong(post_id);
+        buffer.put(sign(key, buffer.array(), PAYLOAD_LENGTH));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decodes a cursor that was returned by {@link FeedCursor#encode(byte[])} with the same key.
+     * @param cursor Encoded cursor.
+     * @param key Secret key that signed the cursor.
+     * @return Decoded cursor.
+     * @throws InvalidFeedCursorException If the String is not a valid cursor, or was not signed with the key.
+     */
+    public static FeedCursor decode(String cursor, byte[] key) throws InvalidFeedCursorException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidFeedCursorException("Malformed feed cursor");
+        }
+        if (bytes.length != ENCODED_LENGTH || bytes[0] != VERSION) throw new InvalidFeedCursorException("Malformed feed cursor");
+        // Constant time, so the signature cannot be guessed byte by byte from response times.
+        byte[] signature = Arrays.copyOfRange(bytes, PAYLOAD_LENGTH, ENCODED_LENGTH);
+        if (!MessageDigest.isEqual(signature, sign(key, bytes, PAYLOAD_LENGTH))) {
+            throw new InvalidFeedCursorException("Feed cursor was not issued by this server");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, PAYLOAD_LENGTH - 1);
+        return new FeedCursor(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Computes the truncated HMAC-SHA256 of the start of a buffer.
+     * @param key Secret key.
+     * @param bytes Buffer that starts with the payload.
+     * @param length Length of the payload.
+     * @return First SIGNATURE_LENGTH bytes of the HMAC.
+     */
+    private static byte[] sign(byte[] key, byte[] bytes, int length) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            mac.update(bytes, 0, length);
+            return Arrays.copyOf(mac.doFinal(), SIGNATURE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            // Every JRE ships HMAC-SHA256, and any key that is not empty is valid for it.
+            throw new IllegalStateException("Could not sign feed cursor", e);
+        }
+    }
+}
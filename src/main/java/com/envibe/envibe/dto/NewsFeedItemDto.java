@@ -4,11 +4,12 @@ import java.io.Serializable;
 import java.util.Date;
 
 public class NewsFeedItemDto implements Serializable {
-    private int post_id;
+    private long post_id;
     private String username;
     private Date post_date;
     private String content;
     private String user_image;
+    private String cursor;
     public NewsFeedItemDto() {
 
     }
@@ -18,15 +19,15 @@ public class NewsFeedItemDto implements Serializable {
         this.content = content;
         this.user_image = user_image;
     }
-    public NewsFeedItemDto(int post_id, String username, Date post_date, String content, String user_image) {
+    public NewsFeedItemDto(long post_id, String username, Date post_date, String content, String user_image) {
         this.post_id = post_id;
         this.username = username;
         this.post_date = post_date;
         this.content = content;
         this.user_image = user_image;
     }
-    public int getPost_id(){return post_id;}
-    public void setPost_id(int post_id) {this.post_id = post_id;}
+    public long getPost_id(){return post_id;}
+    public void setPost_id(long post_id) {this.post_id = post_id;}
     public String getUsername() {return username;}
     public void setUsername(String username) {this.username = username;}
     public Date getPost_date() {return post_date;}
@@ -35,4 +36,6 @@ public class NewsFeedItemDto implements Serializable {
     public void setContent(String content) { this.content = content;}
     public String getUser_image() {return user_image;}
     public void setUser_image(String user_image) {this.user_image = user_image;}
+    public String getCursor() {return cursor;}
+    public void setCursor(String cursor) {this.cursor = cursor;}
 }
@@ -0,0 +1,29 @@
+package com.envibe.envibe.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Internal exception thrown when a client sends a news feed cursor that is malformed or was not issued by {@link com.envibe.envibe.service.FeedCursorService}.
+ * Answered with 400 Bad Request when it reaches a controller.
+ *
+ * @author ARMmaster17
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidFeedCursorException extends Exception {
+
+    /**
+     * Generic constructor that passes internal error message up the stack.
+     * @param msg Internal error message.
+     */
+    public InvalidFeedCursorException(String msg) {
+        super(msg);
+    }
+
+    /**
+     * Default constructor that takes no arguments.
+     */
+    public InvalidFeedCursorException() {
+        super();
+    }
+}
@@ -16,9 +16,9 @@ import java.util.Date;
 public class NewsItem implements Serializable {
 
     /**
-     * Unique post ID. Automatically generated by underlying database.
+     * Unique post ID. Generated by the underlying database or by {@link com.envibe.envibe.dao.PostIdAllocator}.
      */
-    private int post_id;
+    private long post_id;
 
     /**
      * Username of account that created the post.
@@ -49,7 +49,7 @@ public class NewsItem implements Serializable {
     }
 
     /**
-     * New post constructor. Should not be used to represent existing posts, use {@link NewsItem#NewsItem(int, String, Date, String)} instead.
+     * New post constructor. Should not be used to represent existing posts, use {@link NewsItem#NewsItem(long, String, Date, String)} instead.
      * @param username Username of account that created the post.
      * @param post_date Date and time that post was created in UTC time.
      * @param content Generic payload that contains the post content.
@@ -67,7 +67,7 @@ public class NewsItem implements Serializable {
      * @param post_date Date and time that post was created in UTC time.
      * @param content Generic payload that contains the post content.
      */
-    public NewsItem(@NotNull int post_id, @ValidUsername String username, @NotNull Date post_date, @NotNull String content) {
+    public NewsItem(@NotNull long post_id, @ValidUsername String username, @NotNull Date post_date, @NotNull String content) {
         this.post_id = post_id;
         this.username = username;
         this.post_date = post_date;
@@ -78,7 +78,7 @@ public class NewsItem implements Serializable {
      * Returns the globally-unique post id number.
      * @return post id number.
      */
-    public int getPost_id() {
+    public long getPost_id() {
         return post_id;
     }
 
@@ -87,7 +87,7 @@ public class NewsItem implements Serializable {
      * Internal function only. Do not call. Required by JSON and ISerializable objects.
      * @param post_id New posting ID number.
      */
-    public void setPost_id(int post_id) {
+    public void setPost_id(long post_id) {
         this.post_id = post_id;
     }
 
@@ -0,0 +1,32 @@
+package com.envibe.envibe.rowmapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.springframework.jdbc.core.RowMapper;
+import com.envibe.envibe.dto.AuthorDto;
+
+/**
+ * Handles mapping the display columns of the user_account table to an AuthorDto. Only expects the columns selected by
+ * {@link com.envibe.envibe.dao.UserDao#readAuthors(java.util.Collection)}.
+ * @see AuthorDto
+ *
+ * @author ARMmaster17
+ */
+public class AuthorRowMapper implements RowMapper<AuthorDto> {
+
+    /**
+     * Maps raw SQL result set to an AuthorDto.
+     * @param rs Raw SQL result set.
+     * @param rowNum Which row to pull data from.
+     * @return Pre-filled AuthorDto.
+     * @throws SQLException If there is a column mis-match, an invalid row number is supplied, or the raw SQL result set is empty.
+     */
+    @Override
+    public AuthorDto mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new AuthorDto(
+                rs.getString("user_name"),
+                rs.getString("first_name"),
+                rs.getString("last_name"),
+                rs.getString("image_link"));
+    }
+}
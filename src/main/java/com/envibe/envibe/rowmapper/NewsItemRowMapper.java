@@ -25,7 +25,7 @@ public class NewsItemRowMapper implements RowMapper<NewsItem> {
     @Override
     public NewsItem mapRow(ResultSet rs, int rowNum) throws SQLException {
         return new NewsItem(
-                rs.getInt("post_id"),
+                rs.getLong("post_id"),
                 rs.getString("user_name"),
                 rs.getTimestamp("post_date"),
                 rs.getString("post_content")
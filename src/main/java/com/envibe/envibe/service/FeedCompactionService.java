@@ -0,0 +1,183 @@
+package com.envibe.envibe.service;
+
+import com.envibe.envibe.dao.NewsFeedCacheDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically walks every news feed cache in the temporary datastore. Feeds of users that have not read them for a while are
+ * dropped, and every other feed is trimmed to the current maximum length. Feeds without any recorded activity are treated as
+ * active from the first time they are seen, since warmed or rebuilt feeds may not have been read yet. Fan-out skips
+ * missing feeds, so dropped feeds stay dropped until the user comes back and the next read rebuilds the whole feed from the
+ * persistent datastore. Tombstones of posts that were deleted long ago are forgotten.
+ *
+ * @author ARMmaster17
+ */
+@Service
+public class FeedCompactionService {
+
+    /**
+     * Logger for compaction runs.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(FeedCompactionService.class);
+
+    /**
+     * Injected data access object for news feed caches in the temporary datastore.
+     */
+    @Autowired
+    NewsFeedCacheDao newsFeedCacheDao;
+
+    /**
+     * Number of seconds between compaction runs. Zero disables the compactor.
+     */
+    @Value("${envibe.feed.compaction.interval-seconds:3600}")
+    private long intervalSeconds;
+
+    /**
+     * Number of days without a feed read after which a feed is dropped.
+     */
+    @Value("${envibe.feed.compaction.dormant-days:30}")
+    private long dormantDays;
+
+    /**
+     * Number of days a deleted post stays tombstoned. Must be longer than the retraction of the post from every feed takes.
+     */
+    @Value("${envibe.feed.tombstones.retention-days:7}")
+    private long tombstoneRetentionDays;
+
+    /**
+     * Runs the compactor in the background. Null if the compactor is disabled.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Number of completed compaction runs.
+     */
+    private final AtomicLong runs = new AtomicLong();
+
+    /**
+     * Number of feeds looked at across all runs.
+     */
+    private final AtomicLong feedsScanned = new AtomicLong();
+
+    /**
+     * Number of feeds that were trimmed across all runs.
+     */
+    private final AtomicLong feedsTrimmed = new AtomicLong();
+
+    /**
+     * Number of dormant feeds that were dropped across all runs.
+     */
+    private final AtomicLong feedsDropped = new AtomicLong();
+
+    /**
+     * Serialized bytes reclaimed across all runs.
+     */
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    /**
+     * Number of tombstones of deleted posts forgotten across all runs.
+     */
+    private final AtomicLong tombstonesForgotten = new AtomicLong();
+
+    /**
+     * Duration of the last run in milliseconds.
+     */
+    private volatile long lastRunMillis;
+
+    /**
+     * Called as Spring starts up. Schedules the compactor unless it is disabled.
+     */
+    @PostConstruct
+    private void init() {
+        if (intervalSeconds <= 0) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "feed-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::runSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Called as Spring shuts down. Stops the compactor between feeds.
+     */
+    @PreDestroy
+    private void dismantle() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    /**
+     * Walks every feed once, dropping dormant feeds and trimming the rest.
+     */
+    public void compact() {
+        long start = System.currentTimeMillis();
+        long cutoff = start - TimeUnit.DAYS.toMillis(dormantDays);
+        newsFeedCacheDao.scanFeeds(username -> {
+            if (Thread.currentThread().isInterrupted()) return;
+            feedsScanned.incrementAndGet();
+            Long lastActive = newsFeedCacheDao.getLastActive(username);
+            // Activity lives in the same datastore as the feeds and can be lost along with them, while reads and rebuilds
+            // record it again. A feed without any is given a full window from now instead of being dropped on sight.
+            if (lastActive == null) {
+                newsFeedCacheDao.touch(username);
+                lastActive = start;
+            }
+            if (lastActive < cutoff) {
+                reclaimedBytes.addAndGet(newsFeedCacheDao.drop(username));
+                feedsDropped.incrementAndGet();
+                return;
+            }
+            long reclaimed = newsFeedCacheDao.trim(username);
+            if (reclaimed > 0) {
+                reclaimedBytes.addAndGet(reclaimed);
+                feedsTrimmed.incrementAndGet();
+            }
+        });
+        // Users whose feeds were dropped don't need to be tracked any more.
+        newsFeedCacheDao.forgetInactiveSince(cutoff);
+        // Deleted posts have long been retracted from every feed by now.
+        tombstonesForgotten.addAndGet(newsFeedCacheDao.forgetTombstonesBefore(start - TimeUnit.DAYS.toMillis(tombstoneRetentionDays)));
+        lastRunMillis = System.currentTimeMillis() - start;
+        runs.incrementAndGet();
+    }
+
+    /**
+     * Collects the compactor counters into a single map so they can be exported.
+     * @return Compaction statistics keyed by name.
+     */
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("runs", runs.get());
+        statistics.put("lastRunMillis", lastRunMillis);
+        statistics.put("feedsScanned", feedsScanned.get());
+        statistics.put("feedsTrimmed", feedsTrimmed.get());
+        statistics.put("feedsDropped", feedsDropped.get());
+        statistics.put("reclaimedBytes", reclaimedBytes.get());
+        statistics.put("tombstonesForgotten", tombstonesForgotten.get());
+        return statistics;
+    }
+
+    /**
+     * Runs the compactor and logs failures, so that one failed run does not cancel the schedule.
+     */
+    private void runSafely() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            logger.warn("News feed compaction failed", e);
+        }
+    }
+}
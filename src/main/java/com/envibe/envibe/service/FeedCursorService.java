@@ -0,0 +1,82 @@
+package com.envibe.envibe.service;
+
+import com.envibe.envibe.dto.FeedCursor;
+import com.envibe.envibe.exception.InvalidFeedCursorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.validation.constraints.NotNull;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Objects;
+
+/**
+ * Issues and checks the news feed cursors handed to clients. Cursors are signed with a secret that every instance shares, so a
+ * cursor issued by one instance is accepted by the others, and a cursor that was not issued by any of them is rejected.
+ * @see FeedCursor
+ *
+ * @author ARMmaster17
+ */
+@Service
+public class FeedCursorService {
+
+    /**
+     * Logger for the warning about a missing secret.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(FeedCursorService.class);
+
+    /**
+     * Number of random bytes in the key of an instance that has no secret configured.
+     */
+    private static final int RANDOM_KEY_LENGTH = 32;
+
+    /**
+     * Secret that signs cursors. Must be the same on every instance that serves the feed API.
+     */
+    @Value("${envibe.feed.cursor.secret:}")
+    private String secret;
+
+    /**
+     * Key derived from the secret.
+     */
+    private byte[] key;
+
+    /**
+     * Called on Spring startup. Falls back to a random key if no secret is configured, which only works for a single instance
+     * and turns every issued cursor invalid on restart.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (secret == null || secret.isEmpty()) {
+            logger.warn("envibe.feed.cursor.secret is not set, so feed cursors are only accepted by this instance until it restarts");
+            key = new byte[RANDOM_KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Encodes a cursor for a client.
+     * @param cursor Cursor to encode.
+     * @return Signed, URL-safe cursor.
+     */
+    public String encode(@NotNull FeedCursor cursor) {
+        Objects.requireNonNull(cursor, "Method argument cursor cannot be null");
+        return cursor.encode(key);
+    }
+
+    /**
+     * Decodes a cursor sent by a client.
+     * @param cursor Cursor returned by {@link FeedCursorService#encode(FeedCursor)}.
+     * @return Decoded cursor.
+     * @throws InvalidFeedCursorException If the cursor is malformed or was not issued by this service.
+     */
+    public FeedCursor decode(@NotNull String cursor) throws InvalidFeedCursorException {
+        Objects.requireNonNull(cursor, "Method argument cursor cannot be null");
+        return FeedCursor.decode(cursor, key);
+    }
+}
@@ -0,0 +1,306 @@
+package com.envibe.envibe.service;
+
+import com.envibe.envibe.dao.FriendDao;
+import com.envibe.envibe.dao.NewsFeedCacheDao;
+import com.envibe.envibe.dao.NewsItemDao;
+import com.envibe.envibe.dto.FeedCursor;
+import com.envibe.envibe.model.Relationship;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills the news feeds of recently active users after the temporary datastore comes up empty, for example after a Redis
+ * restart or a deploy. Users are split into batches. For each batch the recent posts of the users and of the accounts they
+ * follow are read from the persistent datastore, at most one feed length per author, the feeds of the batch are built in
+ * memory, and then written to Redis in one pipeline. Every author is read from its own index range, so a batch only costs
+ * the posts that can end up in its feeds rather than every post in the lookback window. The number of batches in flight and
+ * the rate at which posts are read are both limited, so the job does not starve the database.
+ *
+ * @author ARMmaster17
+ */
+@Service
+public class FeedWarmupService {
+
+    /**
+     * Logger for warm-up runs.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(FeedWarmupService.class);
+
+    /**
+     * Number of posts read between checks of the rate limit.
+     */
+    private static final int THROTTLE_INTERVAL = 100;
+
+    /**
+     * Orders feed positions from the oldest to the newest post.
+     */
+    private static final Comparator<FeedCursor> OLDEST_FIRST = Comparator.comparingLong(FeedCursor::getScore)
+            .thenComparingLong(FeedCursor::getPost_id);
+
+    /**
+     * Injected data access object for news feed caches in the temporary datastore.
+     */
+    @Autowired
+    NewsFeedCacheDao newsFeedCacheDao;
+
+    /**
+     * Injected data access object for posts in the persistent datastore.
+     */
+    @Autowired
+    NewsItemDao newsItemDao;
+
+    /**
+     * Injected data access object for relationships in the persistent datastore.
+     */
+    @Autowired
+    FriendDao friendDao;
+
+    /**
+     * Whether the warm-up starts as soon as the application is ready.
+     */
+    @Value("${envibe.feed.warmup.on-startup:false}")
+    private boolean onStartup;
+
+    /**
+     * Number of days to look back for active users and for posts to load into their feeds.
+     */
+    @Value("${envibe.feed.warmup.lookback-days:14}")
+    private long lookbackDays;
+
+    /**
+     * Number of users whose feeds are built in memory at the same time by a single thread.
+     */
+    @Value("${envibe.feed.warmup.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * Number of batches that are built at the same time. Each one holds a database connection while it reads posts.
+     */
+    @Value("${envibe.feed.warmup.threads:1}")
+    private int threads;
+
+    /**
+     * Number of rows fetched from the database per round trip.
+     */
+    @Value("${envibe.feed.warmup.fetch-size:1000}")
+    private int fetchSize;
+
+    /**
+     * Maximum number of posts read per second across all threads. Zero means no limit.
+     */
+    @Value("${envibe.feed.warmup.max-posts-per-second:20000}")
+    private long maxPostsPerSecond;
+
+    /**
+     * Maximum number of posts kept in a single feed, so batches built in memory stay bounded.
+     */
+    @Value("${envibe.feed.max-length:500}")
+    private int maxLength;
+
+    /**
+     * Set while a warm-up is running, so only one runs at a time.
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Number of completed warm-up runs.
+     */
+    private final AtomicLong runs = new AtomicLong();
+
+    /**
+     * Number of users selected by the current or last run.
+     */
+    private final AtomicInteger usersTotal = new AtomicInteger();
+
+    /**
+     * Number of users whose feeds were written by the current or last run.
+     */
+    private final AtomicInteger usersWarmed = new AtomicInteger();
+
+    /**
+     * Number of non-empty feeds written by the current or last run.
+     */
+    private final AtomicInteger feedsWritten = new AtomicInteger();
+
+    /**
+     * Number of posts read from the database by the current or last run.
+     */
+    private final AtomicLong postsStreamed = new AtomicLong();
+
+    /**
+     * Time the current or last run started, in milliseconds since the epoch.
+     */
+    private volatile long startedAt;
+
+    /**
+     * Duration of the last completed run in milliseconds.
+     */
+    private volatile long lastRunMillis;
+
+    /**
+     * Called once the application is ready to serve requests. Starts the warm-up if it is enabled on startup.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (onStartup) start();
+    }
+
+    /**
+     * Starts a warm-up in the background.
+     * @return True if the warm-up was started, false if one is already running.
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) return false;
+        Thread thread = new Thread(this::runSafely, "feed-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Fills the feeds of every recently active user and waits for the last batch to be written.
+     */
+    public void warmUp() {
+        startedAt = System.currentTimeMillis();
+        usersTotal.set(0);
+        usersWarmed.set(0);
+        feedsWritten.set(0);
+        postsStreamed.set(0);
+        Date since = new Date(startedAt - TimeUnit.DAYS.toMillis(lookbackDays));
+        // Users that read their feed or posted recently. The activity record only survives if Redis kept its data.
+        Set<String> usernames = new LinkedHashSet<>(newsFeedCacheDao.getActiveSince(since.getTime()));
+        usernames.addAll(newsItemDao.readAuthorsSince(since));
+        usersTotal.set(usernames.size());
+        List<String> ordered = new ArrayList<>(usernames);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "feed-warmup-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> batches = new ArrayList<>();
+            for (int i = 0; i < ordered.size(); i += batchSize) {
+                List<String> batch = ordered.subList(i, Math.min(ordered.size(), i + batchSize));
+                batches.add(pool.submit(() -> warmBatch(batch, since)));
+            }
+            for (Future<?> batch : batches) {
+                batch.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("News feed warm-up batch failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        lastRunMillis = System.currentTimeMillis() - startedAt;
+        runs.incrementAndGet();
+    }
+
+    /**
+     * Collects the progress of the current or last run into a single map so it can be exported.
+     * @return Warm-up statistics keyed by name.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        long elapsed = running.get() ? System.currentTimeMillis() - startedAt : lastRunMillis;
+        statistics.put("running", running.get());
+        statistics.put("runs", runs.get());
+        statistics.put("usersTotal", usersTotal.get());
+        statistics.put("usersWarmed", usersWarmed.get());
+        statistics.put("feedsWritten", feedsWritten.get());
+        statistics.put("postsStreamed", postsStreamed.get());
+        statistics.put("elapsedMillis", elapsed);
+        statistics.put("postsPerSecond", elapsed > 0 ? postsStreamed.get() * 1000 / elapsed : 0);
+        return statistics;
+    }
+
+    /**
+     * Builds the feeds of one batch of users in memory from the recent posts of every author they follow, then writes them all
+     * at once.
+     * @param usernames Users in the batch.
+     * @param since Oldest post date to load.
+     */
+    private void warmBatch(List<String> usernames, Date since) {
+        // Map every author to the users in this batch whose feeds their posts belong in. Users see their own posts.
+        Map<String, List<String>> readersByAuthor = new HashMap<>();
+        for (String username : usernames) {
+            readersByAuthor.computeIfAbsent(username, author -> new ArrayList<>()).add(username);
+        }
+        for (Relationship relationship : friendDao.readAll(usernames)) {
+            readersByAuthor.computeIfAbsent(relationship.getUserFriend(), author -> new ArrayList<>()).add(relationship.getUserName());
+        }
+        // Posts arrive grouped by author rather than by date, so each feed keeps its newest maxLength posts in a heap that
+        // drops the oldest.
+        Map<String, PriorityQueue<FeedCursor>> feeds = new HashMap<>();
+        newsItemDao.streamNewestSince(new ArrayList<>(readersByAuthor.keySet()), since, maxLength, fetchSize, post -> {
+            throttle(postsStreamed.incrementAndGet());
+            List<String> readers = readersByAuthor.get(post.getUsername());
+            if (readers == null) return;
+            FeedCursor position = new FeedCursor(post.getPost_date().getTime(), post.getPost_id());
+            for (String reader : readers) {
+                PriorityQueue<FeedCursor> feed = feeds.computeIfAbsent(reader, username -> new PriorityQueue<>(OLDEST_FIRST));
+                feed.add(position);
+                if (feed.size() > maxLength) feed.poll();
+            }
+        });
+        Map<String, List<FeedCursor>> positions = new HashMap<>();
+        feeds.forEach((username, feed) -> positions.put(username, new ArrayList<>(feed)));
+        newsFeedCacheDao.rebuildAll(positions);
+        usersWarmed.addAndGet(usernames.size());
+        feedsWritten.addAndGet(positions.size());
+    }
+
+    /**
+     * Sleeps while the run is reading posts faster than envibe.feed.warmup.max-posts-per-second.
+     * @param streamed Number of posts read so far by the run.
+     */
+    private void throttle(long streamed) {
+        if (maxPostsPerSecond <= 0 || streamed % THROTTLE_INTERVAL != 0) return;
+        long ahead = streamed * 1000 / maxPostsPerSecond - (System.currentTimeMillis() - startedAt);
+        if (ahead <= 0) return;
+        try {
+            Thread.sleep(ahead);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the warm-up and logs failures, then allows the next run to start.
+     */
+    private void runSafely() {
+        try {
+            warmUp();
+            logger.info("News feed warm-up filled {} feeds from {} posts", feedsWritten.get(), postsStreamed.get());
+        } catch (RuntimeException e) {
+            logger.warn("News feed warm-up failed", e);
+        } finally {
+            running.set(false);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.envibe.envibe.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.validation.constraints.NotNull;
+import java.util.Objects;
+
+/**
+ * Serves the number of followers of a user from the temporary datastore, so the fan-out strategy for a new post can be chosen
+ * without a COUNT query per post. Counts are taken with SCARD from the followers set of the social graph cache, which
+ * {@link com.envibe.envibe.dao.FriendDao} keeps up to date on every follow and unfollow. See {@link SocialGraphService}.
+ *
+ * @author ARMmaster17
+ */
+@Service
+public class FollowerCountService {
+
+    /**
+     * Injected service for the social graph sets in the temporary datastore.
+     */
+    @Autowired
+    SocialGraphService socialGraphService;
+
+    /**
+     * Returns the number of users that follow a user.
+     * @param username User to count the followers of.
+     * @return Number of followers.
+     */
+    public long getFollowerCount(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        return socialGraphService.getFollowerCount(username);
+    }
+}
@@ -0,0 +1,188 @@
+package com.envibe.envibe.service;
+
+import com.envibe.envibe.dao.CachedItemDao;
+import com.envibe.envibe.dao.NewsFeedCacheDao;
+import com.envibe.envibe.dao.NewsItemDao;
+import com.envibe.envibe.dto.FeedCursor;
+import com.envibe.envibe.model.CachedItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.validation.constraints.NotNull;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Rebuilds news feed caches that have gone missing from the temporary datastore, for example after an eviction or a Redis
+ * restart, from the posts in the persistent datastore. Only one rebuild per user runs at a time: concurrent requests in the
+ * same instance wait for the running rebuild, and other instances are kept out by a marker in Redis. The marker outlives the
+ * rebuild by a cooldown, so users whose feeds are empty are not rebuilt on every read. Fan-out only writes into missing feeds
+ * while the marker exists, so posts made during a rebuild are kept, and a feed never comes back with only the posts made since
+ * it went missing. A failed rebuild deletes whatever was written into the feed and leaves a cooldown marker that fan-out
+ * ignores, so the feed is neither rebuilt nor partially recreated before the cooldown is over.
+ *
+ * @author ARMmaster17
+ */
+@Service
+public class NewsFeedRebuildService {
+
+    /**
+     * Logger for rebuilds that failed.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(NewsFeedRebuildService.class);
+
+    /**
+     * Injected data access object for news feed caches in the temporary datastore.
+     */
+    @Autowired
+    NewsFeedCacheDao newsFeedCacheDao;
+
+    /**
+     * Injected data access object for posts in the persistent datastore.
+     */
+    @Autowired
+    NewsItemDao newsItemDao;
+
+    /**
+     * Injected data access object used for the rebuild markers.
+     */
+    @Autowired
+    CachedItemDao cachedItemDao;
+
+    /**
+     * Number of newest posts loaded into a rebuilt feed.
+     */
+    @Value("${envibe.feed.rebuild.post-count:200}")
+    private int postCount;
+
+    /**
+     * Number of seconds after a rebuild starts during which the same feed is not rebuilt again by any instance.
+     */
+    @Value("${envibe.feed.rebuild.cooldown-seconds:60}")
+    private long cooldownSeconds;
+
+    /**
+     * Rebuilds that are running in this instance, keyed by username.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Number of feeds rebuilt by this instance.
+     */
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    /**
+     * Number of requests that waited for a rebuild started by another request instead of starting their own.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Number of rebuilds skipped because another instance held the marker or the feed was rebuilt recently.
+     */
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Number of rebuilds that failed.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Rebuilds a user's feed if it is missing from the temporary datastore. Blocks until the feed has been rebuilt, either by
+     * this call or by a concurrent one.
+     * @param username User that owns the feed.
+     * @return True if the feed was rebuilt and should be read again.
+     */
+    public boolean rebuildIfMissing(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        CompletableFuture<Boolean> rebuild = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = inFlight.putIfAbsent(username, rebuild);
+        if (running != null) {
+            // Another request is already rebuilding this feed, so wait for its result instead of querying again.
+            coalesced.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                return false;
+            }
+        }
+        try {
+            boolean rebuilt = rebuild(username);
+            rebuild.complete(rebuilt);
+            return rebuilt;
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            // Posts fanned out during the rebuild may have recreated a partial feed, which would keep the next read from rebuilding it.
+            abandonQuietly(username);
+            rebuild.completeExceptionally(e);
+            logger.warn("Could not rebuild the news feed of {}", username, e);
+            return false;
+        } finally {
+            inFlight.remove(username, rebuild);
+        }
+    }
+
+    /**
+     * Collects the rebuild counters into a single map so they can be exported.
+     * @return Rebuild statistics keyed by name.
+     */
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("rebuilds", rebuilds.get());
+        statistics.put("coalesced", coalesced.get());
+        statistics.put("skipped", skipped.get());
+        statistics.put("failures", failures.get());
+        statistics.put("inFlight", inFlight.size());
+        return statistics;
+    }
+
+    /**
+     * Drops a feed whose rebuild failed, so the next read after the cooldown rebuilds it again. The cooldown stays in place, so
+     * reads during an outage of the persistent datastore do not each start a rebuild of their own.
+     * @param username User that owns the feed.
+     */
+    private void abandonQuietly(String username) {
+        try {
+            newsFeedCacheDao.abandonRebuild(username);
+        } catch (RuntimeException e) {
+            logger.warn("Could not drop the partial news feed of {}", username, e);
+        }
+    }
+
+    /**
+     * Rebuilds a user's feed unless it already exists or another instance claimed it.
+     * @param username User that owns the feed.
+     * @return True if the feed was rebuilt.
+     */
+    private boolean rebuild(String username) {
+        // A request that was waiting on the map may arrive after the previous rebuild finished.
+        if (newsFeedCacheDao.exists(username)) return false;
+        // The last rebuild failed, so wait for its cooldown before querying the persistent datastore again.
+        if (newsFeedCacheDao.isRebuildCoolingDown(username)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        // SET NX with a time-to-live claims the rebuild across instances and doubles as the cooldown.
+        CachedItem marker = new CachedItem(CachedItemDao.PURPOSE_NEWS_FEED_REBUILD, username, Long.toString(System.currentTimeMillis()));
+        if (!cachedItemDao.createIfAbsent(marker, cooldownSeconds, TimeUnit.SECONDS)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        List<FeedCursor> positions = newsItemDao.readFeed(username, postCount).stream()
+                .map(post -> new FeedCursor(post.getPost_date().getTime(), post.getPost_id()))
+                .collect(Collectors.toList());
+        newsFeedCacheDao.rebuild(username, positions);
+        rebuilds.incrementAndGet();
+        return !positions.isEmpty();
+    }
+}
@@ -1,17 +1,23 @@
 package com.envibe.envibe.service;
 
-import com.envibe.envibe.dao.CachedItemDao;
+import com.envibe.envibe.dao.FeedEntryCacheDao;
+import com.envibe.envibe.dao.NewsFeedCacheDao;
 import com.envibe.envibe.dao.NewsItemDao;
 import com.envibe.envibe.dao.UserDao;
+import com.envibe.envibe.dto.AuthorDto;
+import com.envibe.envibe.dto.FeedCursor;
 import com.envibe.envibe.dto.NewsFeedItemDto;
-import com.envibe.envibe.model.CachedItem;
 import com.envibe.envibe.model.NewsItem;
-import com.envibe.envibe.model.User;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Handles the retrieval of a pre-processed feed cache associated with a registered user.
@@ -22,13 +28,19 @@ import java.util.List;
 public class NewsFeedRetrievalService {
 
     /**
-     * Injected data access object for items in the temporary datastore.
+     * Injected data access object for news feed caches in the temporary datastore.
      */
     @Autowired
-    CachedItemDao cachedItemDao;
+    NewsFeedCacheDao newsFeedCacheDao;
 
     /**
-     * Injected data access object for news feed caches in the temporary datastore.
+     * Injected data access object for hydrated feed entries in the temporary datastore.
+     */
+    @Autowired
+    FeedEntryCacheDao feedEntryCacheDao;
+
+    /**
+     * Injected data access object for posts in the persistent datastore.
      */
     @Autowired
     NewsItemDao newsItemDao;
@@ -39,6 +51,24 @@ public class NewsFeedRetrievalService {
     @Autowired
     UserDao userDao;
 
+    /**
+     * Injected service that rebuilds news feed caches that are missing from the temporary datastore.
+     */
+    @Autowired
+    NewsFeedRebuildService newsFeedRebuildService;
+
+    /**
+     * Injected service for checking who a specified user follows.
+     */
+    @Autowired
+    SocialGraphService socialGraphService;
+
+    /**
+     * Injected service that signs the cursors handed to clients.
+     */
+    @Autowired
+    FeedCursorService feedCursorService;
+
     /**
      * Sets the default number of posts to return if count is not specified.
      */
@@ -47,7 +77,7 @@ public class NewsFeedRetrievalService {
     /**
      * Sets the default indicator that a request should retrieve posts from the beginning.
      */
-    private static final int FROM_BEGINNING = -1;
+    private static final int FROM_BEGINNING = NewsFeedCacheDao.FROM_BEGINNING;
 
     /**
      * Retrieves a list of posts to populate a user's newsfeed.
@@ -75,109 +105,151 @@ public class NewsFeedRetrievalService {
      * @param after Defines the last post_id that was received.
      * @return List of posts from user's newsfeed.
      */
-    public List<NewsFeedItemDto> getNewsFeed(String username, int count, int after) {
-        // Get the post_ids of the cached feed of the specified user.
-        int[] idReferenceArray = getAllPostIndexes(username);
-        // Return an empty list if no cache was found or the specified user does not exist.
+    public List<NewsFeedItemDto> getNewsFeed(String username, int count, long after) {
+        // Keep the feed from being dropped as dormant.
+        newsFeedCacheDao.touch(username);
+        // Get one page of post_ids from the cached feed of the specified user. An empty page means the cache was not found,
+        // the specified user does not exist, or we have reached the end of the feed.
         // TODO: Throw an exception if we go the API route so we can customize the error message on the frontend.
-        if (idReferenceArray.length == 0) return new ArrayList<NewsFeedItemDto>();
-        // Calculate the index of idReferenceArray to start at.
-        int startIndex = getStartIndex(idReferenceArray, after);
-        // Check if the +1 put the startIndex past the bounds of the array. If so, we have reached the end of the
-        // feed and can return an empty ArrayList.
-        if (startIndex >= idReferenceArray.length) return new ArrayList<NewsFeedItemDto>();
-        // Calculate the index of idReferenceArray to end at (or the end of the array, whichever is shorter.
-        int endIndex = Math.min(startIndex + count, idReferenceArray.length - 1);
-        // Return the loaded NewsItems for the portion of post_ids in idReferenceArray that we need.
-        return getNewsItemsBetweenIndexes(idReferenceArray, startIndex, endIndex);
+        // Posts by followed authors in pull mode are not in the cached feed, so they are merged in from their author indexes.
+        List<String> pullAuthors = getFollowedPullAuthors(username);
+        List<FeedCursor> positions = newsFeedCacheDao.read(username, pullAuthors, after, count);
+        if (rebuildIfMissing(username, pullAuthors, positions)) positions = newsFeedCacheDao.read(username, pullAuthors, after, count);
+        // Return the loaded NewsItems for the page.
+        return getNewsItems(positions);
     }
 
     /**
-     * Retrieves a user's feed cache that contains post_ids.
-     * @param username Username to include in search tag.
-     * @return Integer array of post_ids.
-     */
-    private int[] getAllPostIndexes(String username) {
-        // Create a search tag based on our assigned purpose and the username we are looking for.
-        String tag = cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_CACHE, username);
-        // Load the raw CachedItem from the temporary datastore.
-        CachedItem cachedFeed = cachedItemDao.read(tag);
-        // Return an empty array if the cache was not found for the specified user.
-        // TODO: Throw an exception.
-        if (cachedFeed == null) return new int[0];
-        // Get the String that contains the list of post_ids.
-        String idFeed = cachedFeed.getPayload();
-        // Return an empty array if the feed is empty.
-        if (idFeed.isEmpty()) return new int[0];
-        // Split the feed into an array so we can address each post_id.
-        String[] idArray = idFeed.split(CachedItemDao.PAYLOAD_LIST_DELIMITER);
-        // Convert the String[] array to an int[] array.
-        int[] idReferenceArray = new int[idArray.length];
-        for (int i = 0; i < idArray.length; i++) {
-            idReferenceArray[i] = Integer.parseInt(idArray[i]);
+     * Retrieves a list of posts to populate a user's newsfeed, starting after a cursor. Unlike paging by post_id, the page
+     * does not shift when new posts arrive, and still works after the post behind the cursor has left the feed.
+     * @param username Username to perform the lookup under.
+     * @param count Number of posts to return, or zero for the default.
+     * @param cursor Cursor of the last post that was received, or null to start from the beginning.
+     * @return List of posts from user's newsfeed, each with the cursor that continues after it.
+     */
+    public List<NewsFeedItemDto> getNewsFeed(String username, int count, FeedCursor cursor) {
+        // Keep the feed from being dropped as dormant.
+        newsFeedCacheDao.touch(username);
+        int pageSize = count > 0 ? count : DEFAULT_POST_COUNT;
+        List<String> pullAuthors = getFollowedPullAuthors(username);
+        List<FeedCursor> positions = newsFeedCacheDao.read(username, pullAuthors, cursor, pageSize);
+        if (rebuildIfMissing(username, pullAuthors, positions)) positions = newsFeedCacheDao.read(username, pullAuthors, cursor, pageSize);
+        // Return the loaded NewsItems for the page.
+        return getNewsItems(positions);
+    }
+
+    /**
+     * Rebuilds a user's feed from the persistent datastore if it is missing.
+     * @param username Username to perform the lookup under.
+     * @param pullAuthors Pull authors merged into the page.
+     * @param page Page that was read from the feed.
+     * @return True if the feed was rebuilt and the page should be read again.
+     */
+    private boolean rebuildIfMissing(String username, List<String> pullAuthors, List<FeedCursor> page) {
+        // A missing feed reads the same as an empty one, so pages without pull authors only need the extra EXISTS when they
+        // come back empty. Pull authors fill the page from their own indexes whether the feed exists or not.
+        if (!page.isEmpty() && pullAuthors.isEmpty()) return false;
+        if (newsFeedCacheDao.exists(username)) return false;
+        return newsFeedRebuildService.rebuildIfMissing(username);
+    }
+
+    /**
+     * Finds the authors in pull mode whose posts belong in a user's newsfeed.
+     * @param username Username to perform the lookup under.
+     * @return List of followed pull authors, including the user if they are one.
+     */
+    private List<String> getFollowedPullAuthors(String username) {
+        List<String> followedPullAuthors = new ArrayList<>();
+        // Most deployments have no pull authors at all, so avoid the friend lookup in that case.
+        Set<String> pullAuthors = newsFeedCacheDao.getPullAuthors();
+        if (pullAuthors.isEmpty()) return followedPullAuthors;
+        // Users see their own posts on their feed. Pull authors are the few accounts with the most followers, so asking the
+        // social graph cache about each of them is cheaper than walking everyone the user follows.
+        for (String author : pullAuthors) {
+            if (author.equals(username) || socialGraphService.isFollowing(username, author)) followedPullAuthors.add(author);
         }
-        // Return the result.
-        return idReferenceArray;
+        return followedPullAuthors;
     }
 
     /**
-     * Calculates the index in idReferenceArray to start at. Returns 0 if not found.
-     * @param idReferenceArray Array of post_ids to search for after value.
-     * @param after Last post_id received by client.
-     * @return The index following the index of after in idReferenceArray.
-     */
-    private int getStartIndex(int[] idReferenceArray, int after) {
-        // If after is the special FROM_BEGINNING value, return that we should start at the beginning of the array.
-        if (after == FROM_BEGINNING) return 0;
-        // Set the starting index to zero unless after is found.
-        int startIndex = 0;
-        // Iterate through idReferenceArray looking for the post_id defined by after.
-        for (int i = 0; i < idReferenceArray.length; i++) {
-            if(idReferenceArray[i] == after) {
-                // We found it. Increment i by one to have us start at the next index and break the loop.
-                startIndex = i + 1;
-                break;
+     * Loads the posts at a list of feed positions, keeping their order. Entries are served from the cache with a single
+     * MGET, and only posts that are not cached are loaded from the persistent datastore.
+     * @param positions List of feed positions to load.
+     * @return List of loaded NewsItems, each with the cursor of its position.
+     */
+    private List<NewsFeedItemDto> getNewsItems(List<FeedCursor> positions) {
+        List<Long> postIds = positions.stream().map(FeedCursor::getPost_id).collect(Collectors.toList());
+        // Look up the whole page in the cache first.
+        List<NewsFeedItemDto> cached = feedEntryCacheDao.readEntries(postIds);
+        List<Long> missingIds = new ArrayList<>();
+        for (int i = 0; i < postIds.size(); i++) {
+            if (cached.get(i) == null) missingIds.add(postIds.get(i));
+        }
+        // Hydrate the misses from the persistent datastore and cache them for the next read.
+        Map<Long, NewsFeedItemDto> loaded = new HashMap<>();
+        if (!missingIds.isEmpty()) {
+            for (NewsFeedItemDto entry : loadNewsItems(missingIds)) {
+                loaded.put(entry.getPost_id(), entry);
             }
+            feedEntryCacheDao.updateEntries(loaded.values());
+        }
+        // Create list to hold all of the loaded posts, in feed order.
+        ArrayList<NewsFeedItemDto> returnPostings = new ArrayList<>();
+        for (int i = 0; i < postIds.size(); i++) {
+            NewsFeedItemDto entry = cached.get(i) != null ? cached.get(i) : loaded.get(postIds.get(i));
+            // Posts that were deleted after they were added to the feed are skipped.
+            if (entry == null) continue;
+            // The cursor is set after caching, so cached entries never carry the position from another feed.
+            entry.setCursor(feedCursorService.encode(positions.get(i)));
+            returnPostings.add(entry);
         }
         // Return the result.
-        return startIndex;
+        return returnPostings;
     }
 
     /**
-     * Returns a subset of an array of post_ids with all values between two indexes loaded (inclusive).
-     * @param idReferenceArray Array that holds post_id values.
-     * @param startIndex Index to start sublist at.
-     * @param endIndex Index to end sublist at.
-     * @return Sublist of idReferenceArray with loaded NewsItems.
+     * Loads the posts referenced by a list of post_ids from the persistent datastore, keeping their order.
+     * @param postIds List of post_ids to load.
+     * @return List of loaded NewsItems.
      */
-    private List<NewsFeedItemDto> getNewsItemsBetweenIndexes(int[] idReferenceArray, int startIndex, int endIndex) {
+    private List<NewsFeedItemDto> loadNewsItems(List<Long> postIds) {
         // Create list to hold all of the loaded posts.
         ArrayList<NewsFeedItemDto> returnPostings = new ArrayList<>();
-        // Loop to insert the posts we want (assuming the indices are valid).
-        for (int i = startIndex; i <= endIndex; i++) {
-            NewsItem n = newsItemDao.read(idReferenceArray[i]);
-            String imageLink = userDao.read(n.getUsername()).getImage_link();
-            User user = userDao.read(n.getUsername());
-            String visibleName = user.getFirst_name() + " " + user.getLast_name();
-            returnPostings.add(new NewsFeedItemDto(n.getPost_id(), visibleName, n.getPost_date(), n.getContent(), imageLink));
+        // Load the whole page of posts in one query. The results keep the order of the feed.
+        List<NewsItem> posts = newsItemDao.read(postIds.stream().mapToLong(Long::longValue).toArray());
+        // Skip posts that were deleted after they were added to the feed, and tombstone them so later reads skip them
+        // without asking the persistent datastore again.
+        List<Long> deletedIds = new ArrayList<>();
+        for (int i = 0; i < posts.size(); i++) {
+            if (posts.get(i) == null) deletedIds.add(postIds.get(i));
+        }
+        newsFeedCacheDao.addTombstones(deletedIds);
+        posts.removeIf(Objects::isNull);
+        Map<String, AuthorDto> authors = getAuthors(posts.stream().map(NewsItem::getUsername).collect(Collectors.toList()));
+        for (NewsItem n : posts) {
+            AuthorDto author = authors.get(n.getUsername());
+            // Skip posts whose author account has been deleted.
+            if (author == null) continue;
+            returnPostings.add(new NewsFeedItemDto(n.getPost_id(), author.getVisibleName(), n.getPost_date(), n.getContent(), author.getImage_link()));
         }
         // Return the result.
         return returnPostings;
     }
 
     /**
-     * Creates a sub-array from specified endpoints (inclusive).
-     * @param sourceArray Original array.
-     * @param startIndex Index to start the slice.
-     * @param endIndex Index to end the slice.
-     * @return Sub-array within given indexes (inclusive).
+     * Loads the display fields of a set of authors. Cached author cards are used first, and the rest are loaded from the
+     * persistent datastore in one query and then cached.
+     * @param usernames Authors to load.
+     * @return Map of username to display fields.
      */
-    private static int[] sliceArray(int[] sourceArray, int startIndex, int endIndex) {
-        int count = endIndex - startIndex + 1;
-        int[] result = new int[count];
-        for (int i = startIndex; i <= endIndex; i++) {
-            result[i - startIndex] = sourceArray[i];
+    private Map<String, AuthorDto> getAuthors(List<String> usernames) {
+        Map<String, AuthorDto> authors = feedEntryCacheDao.readAuthors(usernames);
+        List<String> missing = usernames.stream().filter(username -> !authors.containsKey(username)).distinct().collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            Map<String, AuthorDto> loaded = userDao.readAuthors(missing);
+            feedEntryCacheDao.updateAuthors(loaded.values());
+            authors.putAll(loaded);
         }
-        return result;
+        return authors;
     }
 }
@@ -1,20 +1,43 @@
 package com.envibe.envibe.service;
 
 import com.envibe.envibe.dao.CachedItemDao;
-import com.envibe.envibe.model.CachedItem;
+import com.envibe.envibe.dao.WorkQueueDao;
 import com.envibe.envibe.worker.NewsFeedUpdateWorker;
+import com.envibe.envibe.worker.RelationshipFeedWorker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.lang.reflect.Array;
-import java.util.ArrayList;
+import javax.validation.constraints.NotNull;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * Handles background updating of friend's news feed when a user creates a post or an event triggers an update on a user's activity.
  * All actions run in the background on the same server that called the service. Trust me, RabbitMQ is not worth it on this project.
+ * New posts are written to a durable Redis work queue (see {@link WorkQueueDao}). A single dispatcher thread claims them and hands them
+ * to a fixed-size worker pool, only claiming as many posts as the pool has room for, so a burst of posts waits in Redis instead of
+ * exhausting server threads or memory. Deletes, follows and unfollows go through the same queue, so their feed changes never block a request.
  * @see com.envibe.envibe.worker.NewsFeedUpdateWorker
  *
  * @author ARMmaster17
@@ -23,53 +46,471 @@ import java.util.ArrayList;
 public class NewsFeedUpdateService {
 
     /**
-     * Injected data access object for CachedItems in the temporary datastore.
+     * Rejection policy that runs the task on the submitting thread. Slows down the submitter instead of dropping work.
+     */
+    public static final String REJECTION_POLICY_CALLER_RUNS = "caller-runs";
+
+    /**
+     * Rejection policy that blocks the submitting thread until the queue has room.
+     */
+    public static final String REJECTION_POLICY_BLOCK = "block";
+
+    /**
+     * Rejection policy that drops the task and only counts it. A dropped post stays in the processing list of the work queue until the next startup.
+     */
+    public static final String REJECTION_POLICY_DISCARD = "discard";
+
+    /**
+     * First word of work queue messages that add a followed user's recent posts to a follower's feed. Also the value of follows
+     * in the relationship change batch of a follower.
+     */
+    public static final String MESSAGE_FOLLOW = "FOLLOW";
+
+    /**
+     * First word of work queue messages that remove an unfollowed user's posts from a follower's feed. Also the value of
+     * unfollows in the relationship change batch of a follower.
+     */
+    public static final String MESSAGE_UNFOLLOW = "UNFOLLOW";
+
+    /**
+     * First word of work queue messages that apply every pending relationship change of a follower to their feed. The changes
+     * are collected in a batch named after the follower, keyed by followee. See {@link WorkQueueDao#enqueueBatch(String, String, String, Map)}.
+     */
+    public static final String MESSAGE_RELATIONSHIPS = "RELATIONSHIPS";
+
+    /**
+     * First word of work queue messages that remove a deleted post from follower feeds.
+     */
+    public static final String MESSAGE_RETRACT = "RETRACT";
+
+    /**
+     * Separates the words of work queue messages. Messages that consist of a single word are post IDs.
+     */
+    public static final String MESSAGE_SPLITTER = " ";
+
+    /**
+     * Separates the usernames in the last word of relationship change messages. Usernames cannot contain it, unlike the comma
+     * of {@link CachedItemDao#PAYLOAD_LIST_DELIMITER}. See {@link com.envibe.envibe.model.validation.validator.UsernameValidator}.
+     */
+    public static final String FOLLOWEE_SPLITTER = CachedItemDao.TAG_SPLITTER;
+
+    /**
+     * Local logger used to report problems with the work queue connection.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(NewsFeedUpdateService.class);
+
+    /**
+     * Shortest pause of the dispatcher after the work queue could not be reached.
+     */
+    private static final long DISPATCHER_MIN_BACKOFF_MILLIS = 500;
+
+    /**
+     * Longest pause of the dispatcher after the work queue could not be reached repeatedly.
+     */
+    private static final long DISPATCHER_MAX_BACKOFF_MILLIS = 30000;
+
+    /**
+     * Injected data access object for the durable queue of posts that still need to be fanned out.
      */
     @Autowired
-    CachedItemDao cachedItemDao;
+    WorkQueueDao workQueueDao;
 
     @Autowired
     ApplicationContext applicationContext;
 
+    /**
+     * Number of worker threads that are kept alive to process new posts.
+     */
+    @Value("${envibe.feed.workers.pool-size:4}")
+    private int poolSize;
+
+    /**
+     * Number of claimed posts that can wait for a free worker. The dispatcher stops claiming once this is full.
+     */
+    @Value("${envibe.feed.workers.queue-capacity:1000}")
+    private int queueCapacity;
+
+    /**
+     * What to do with a task when the pool queue is full. See the REJECTION_POLICY static fields of this class for valid values.
+     */
+    @Value("${envibe.feed.workers.rejection-policy:" + REJECTION_POLICY_CALLER_RUNS + "}")
+    private String rejectionPolicy;
+
+    /**
+     * Number of seconds to wait for queued posts to finish processing when Spring shuts down.
+     */
+    @Value("${envibe.feed.workers.shutdown-timeout-seconds:30}")
+    private long shutdownTimeoutSeconds;
+
+    /**
+     * Number of times a post is attempted before it is moved to the dead-letter list.
+     */
+    @Value("${envibe.feed.queue.max-attempts:3}")
+    private int maxAttempts;
+
+    /**
+     * Number of seconds the dispatcher blocks on an empty queue before checking if it should stop.
+     */
+    @Value("${envibe.feed.queue.poll-timeout-seconds:1}")
+    private long pollTimeoutSeconds;
+
+    /**
+     * Number of seconds the lease of this instance on its claimed posts lasts without being renewed. Posts claimed by an
+     * instance whose lease ran out are handed to the other instances.
+     */
+    @Value("${envibe.feed.queue.lease-seconds:60}")
+    private long leaseSeconds;
+
     /**
      * Local pool of workers so that we can invoke their control functions if needed.
      */
-    private ArrayList<Thread> workers;
+    private ThreadPoolExecutor workers;
+
+    /**
+     * Number of posts that could not be queued because the pool was saturated.
+     */
+    private final AtomicLong rejectedTasks = new AtomicLong();
+
+    /**
+     * Number of posts that failed and were moved to the dead-letter list.
+     */
+    private final AtomicLong deadLetteredTasks = new AtomicLong();
+
+    /**
+     * Free slots in the worker pool. The dispatcher takes one before claiming a post and the worker gives it back when it finishes.
+     */
+    private Semaphore capacity;
+
+    /**
+     * Thread that moves posts from the work queue to the worker pool.
+     */
+    private Thread dispatcher;
+
+    /**
+     * Renews the lease of this instance and recovers posts of instances whose lease ran out.
+     */
+    private ScheduledExecutorService leaseKeeper;
 
     /**
-     * Called as Spring starts up. Initializes worker pool.
+     * Cleared on shutdown to stop the dispatcher.
+     */
+    private volatile boolean running;
+
+    /**
+     * Called as Spring starts up. Initializes worker pool and starts the dispatcher.
      */
     @PostConstruct
     private void init() {
-        workers = new ArrayList<Thread>();
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "newsfeed-worker-" + threadCount.incrementAndGet()),
+                createRejectionHandler(rejectionPolicy));
+        capacity = new Semaphore(poolSize + queueCapacity);
+        running = true;
+        dispatcher = new Thread(this::dispatch, "newsfeed-dispatcher");
+        dispatcher.start();
+        leaseKeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "newsfeed-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Renew three times per lease, so a single missed renewal does not hand the claimed posts to another instance.
+        long renewMillis = Math.max(1, TimeUnit.SECONDS.toMillis(leaseSeconds) / 3);
+        leaseKeeper.scheduleWithFixedDelay(this::keepLease, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a post to be added to the news feeds of the poster's followers. Returns as soon as the post is stored in the durable work queue.
+     * @param post_id ID of the post to add to follower feeds.
+     */
+    public void triggerWorker(long post_id) {
+        workQueueDao.enqueue(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, Long.toString(post_id));
+    }
+
+    /**
+     * Queues a deleted post to be removed from the news feeds it was added to. The caller must tombstone the post first, so that
+     * reads skip it until the removal is done.
+     * @param post_id ID of the deleted post.
+     * @param author Username of the account that created the post.
+     */
+    public void triggerRetractWorker(long post_id, @NotNull String author) {
+        Objects.requireNonNull(author, "Method argument author cannot be null");
+        workQueueDao.enqueue(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, MESSAGE_RETRACT + MESSAGE_SPLITTER + author + MESSAGE_SPLITTER + post_id);
+    }
+
+    /**
+     * Queues the recent posts of newly followed users to be merged into the follower's news feed. Returns as soon as the
+     * change is stored in the durable work queue, so following many users at once never blocks the request.
+     * @param follower Username of the account whose feed changes.
+     * @param followees Usernames of the accounts that were followed.
+     */
+    public void triggerFollowWorker(@NotNull String follower, @NotNull Collection<String> followees) {
+        triggerRelationshipWorker(MESSAGE_FOLLOW, follower, followees);
+    }
+
+    /**
+     * Queues the posts of unfollowed users to be removed from the follower's news feed. Returns as soon as the change is
+     * stored in the durable work queue.
+     * @param follower Username of the account whose feed changes.
+     * @param followees Usernames of the accounts that were unfollowed.
+     */
+    public void triggerUnfollowWorker(@NotNull String follower, @NotNull Collection<String> followees) {
+        triggerRelationshipWorker(MESSAGE_UNFOLLOW, follower, followees);
+    }
+
+    /**
+     * Returns the number of posts waiting for a free worker.
+     * @return Current queue depth.
+     */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Returns the number of workers that are currently processing a post.
+     * @return Approximate number of busy worker threads.
+     */
+    public int getActiveWorkers() {
+        return workers.getActiveCount();
     }
 
     /**
-     * Creates a worker, assigns it a post_id, and adds it to the thread pool.
-     * @param post_id
+     * Returns the number of posts that were rejected because the pool was saturated, regardless of the rejection policy.
+     * @return Total rejected tasks since startup.
      */
-    public void triggerWorker(int post_id) {
-        // Send a payload through the temporary datastore with the new post ID to add to the newsfeed.
-        CachedItem newPostMessage = new CachedItem(CachedItemDao.PURPOSE_NEWS_FEED_WORKER_PASSTHROUGH, "INTERNAL", Integer.toString(post_id));
-        // Save the payload so that it can be accessed by the worker thread.
-        cachedItemDao.create(newPostMessage);
-        // Create a worker and assign it to the worker pool so we can monitor it.
-        NewsFeedUpdateWorker newsFeedUpdateWorker = new NewsFeedUpdateWorker();
-        // Allow Spring to inject DAO and config dependencies.
-        applicationContext.getAutowireCapableBeanFactory().autowireBean(newsFeedUpdateWorker);
-        // Initialize the worker as a Thread() and add it to the pool.
-        workers.add(new Thread(newsFeedUpdateWorker));
-        // Fire off the worker.
-        workers.get(workers.size() - 1).start();
+    public long getRejectedTaskCount() {
+        return rejectedTasks.get();
     }
 
     /**
-     * Called on Spring shutdown. Forcefully kills all workers in the pool.
+     * Collects the worker pool counters into a single map so they can be exported for sizing the pool.
+     * @return Worker pool statistics keyed by name.
+     */
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("poolSize", workers.getPoolSize());
+        statistics.put("activeWorkers", getActiveWorkers());
+        statistics.put("queueDepth", getQueueDepth());
+        statistics.put("queueCapacity", queueCapacity);
+        statistics.put("completedTasks", workers.getCompletedTaskCount());
+        statistics.put("rejectedTasks", getRejectedTaskCount());
+        statistics.put("deadLetteredTasks", deadLetteredTasks.get());
+        return statistics;
+    }
+
+    /**
+     * Collects the lengths of the lists of the durable work queue. Queries the temporary datastore. Processing counts the posts
+     * claimed by this instance only.
+     * @return Work queue statistics keyed by name.
+     */
+    public Map<String, Number> getQueueStatistics() {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("pending", workQueueDao.size(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, WorkQueueDao.TAG_PENDING));
+        statistics.put("processing", workQueueDao.size(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, WorkQueueDao.TAG_PROCESSING));
+        statistics.put("dead", workQueueDao.size(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, WorkQueueDao.TAG_DEAD));
+        return statistics;
+    }
+
+    /**
+     * Called on Spring shutdown. Stops the dispatcher and waits for claimed posts to drain before forcefully stopping the pool.
+     * Posts that are still unacknowledged are handed back to the work queue, or recovered by another instance once the lease
+     * runs out if that fails.
      */
     @PreDestroy
     public void dismantle() {
-        for(Thread worker : workers) {
-            worker.stop();
+        running = false;
+        dispatcher.interrupt();
+        try {
+            // The dispatcher wakes up at the latest when its blocking claim times out.
+            dispatcher.join(TimeUnit.SECONDS.toMillis(pollTimeoutSeconds + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                // Drain timed out. Interrupt whatever is still running.
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        leaseKeeper.shutdownNow();
+        try {
+            workQueueDao.release(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE);
+        } catch (RuntimeException e) {
+            logger.warn("Could not hand claimed news feed work items back to the queue: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Renews the lease of this instance, then recovers the posts of every instance whose lease ran out.
+     */
+    private void keepLease() {
+        try {
+            workQueueDao.renewLease(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE);
+            long recovered = workQueueDao.recoverExpired(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, TimeUnit.SECONDS.toMillis(leaseSeconds));
+            if (recovered > 0) logger.info("Recovered {} news feed work items from expired leases", recovered);
+        } catch (RuntimeException e) {
+            logger.warn("Could not renew the news feed work queue lease: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Main loop of the dispatcher thread. Takes out the lease of this instance and recovers posts of instances whose lease ran
+     * out, then claims posts from the work queue whenever the worker pool has a free slot. Backs off while the temporary
+     * datastore is unreachable.
+     */
+    private void dispatch() {
+        boolean leased = false;
+        long backoff = DISPATCHER_MIN_BACKOFF_MILLIS;
+        while (running) {
+            try {
+                // Wait for a free slot so that the pool never has to reject a claimed post.
+                capacity.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            String message;
+            try {
+                // Nothing may be claimed before the lease exists, or another instance could recover it right away.
+                if (!leased) {
+                    workQueueDao.renewLease(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE);
+                    workQueueDao.recoverExpired(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, TimeUnit.SECONDS.toMillis(leaseSeconds));
+                    leased = true;
+                }
+                message = workQueueDao.claim(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, pollTimeoutSeconds, TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                capacity.release();
+                logger.warn("News feed work queue unavailable, retrying in {} ms: {}", backoff, e.getMessage());
+                if (!sleep(backoff)) return;
+                backoff = Math.min(backoff * 2, DISPATCHER_MAX_BACKOFF_MILLIS);
+                continue;
+            }
+            backoff = DISPATCHER_MIN_BACKOFF_MILLIS;
+            if (message == null) {
+                // Queue was empty for the whole poll timeout.
+                capacity.release();
+                continue;
+            }
+            workers.execute(() -> process(message));
+        }
+    }
+
+    /**
+     * Adds relationship changes to the pending changes of the follower. A follower only has one message in the durable work
+     * queue at a time, so a burst of follows and unfollows is applied by a single worker run, and a followee that was followed
+     * and unfollowed again before the run is only handled by its last change.
+     * @param type Either MESSAGE_FOLLOW or MESSAGE_UNFOLLOW.
+     * @param follower Username of the account whose feed changes.
+     * @param followees Usernames of the accounts that were followed or unfollowed.
+     */
+    private void triggerRelationshipWorker(String type, String follower, Collection<String> followees) {
+        Objects.requireNonNull(follower, "Method argument follower cannot be null");
+        Objects.requireNonNull(followees, "Method argument followees cannot be null");
+        if (followees.isEmpty()) return;
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (String followee : followees) {
+            changes.put(followee, type);
+        }
+        workQueueDao.enqueueBatch(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, follower, MESSAGE_RELATIONSHIPS + MESSAGE_SPLITTER + follower, changes);
+    }
+
+    /**
+     * Creates the worker that handles a claimed message.
+     * @param message Claimed message. Either a post ID, a deleted post, or a relationship change.
+     * @return Worker that has not been started yet.
+     */
+    private Runnable createWorker(String message) {
+        String[] words = message.split(MESSAGE_SPLITTER);
+        if (words.length == 1) return new NewsFeedUpdateWorker(Long.parseLong(message));
+        if (words.length == 2 && words[0].equals(MESSAGE_RELATIONSHIPS)) return new RelationshipFeedWorker(words[1]);
+        // Single relationship changes are no longer queued, but messages queued before batching may still be waiting.
+        if (words.length != 3) throw new IllegalArgumentException("Malformed news feed work item '" + message + "'");
+        if (words[0].equals(MESSAGE_RETRACT)) return new NewsFeedUpdateWorker(Long.parseLong(words[2]), words[1]);
+        List<String> followees = Arrays.asList(words[2].split(Pattern.quote(FOLLOWEE_SPLITTER)));
+        switch (words[0]) {
+            case MESSAGE_FOLLOW:
+                return new RelationshipFeedWorker(words[1], followees, true);
+            case MESSAGE_UNFOLLOW:
+                return new RelationshipFeedWorker(words[1], followees, false);
+            default:
+                throw new IllegalArgumentException("Unknown news feed work item type '" + words[0] + "'");
+        }
+    }
+
+    /**
+     * Runs a worker for a claimed message, then acknowledges it on success or hands it back to the work queue on failure.
+     * @param message Claimed message that contains the post ID or relationship change.
+     */
+    private void process(String message) {
+        try {
+            // Create a worker for the claimed message and allow Spring to inject DAO and config dependencies.
+            Runnable worker = createWorker(message);
+            applicationContext.getAutowireCapableBeanFactory().autowireBean(worker);
+            worker.run();
+            workQueueDao.acknowledge(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, message);
+        } catch (RuntimeException e) {
+            try {
+                if (!workQueueDao.retry(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, message, maxAttempts)) {
+                    deadLetteredTasks.incrementAndGet();
+                    logger.error("Moved news feed work item '{}' to the dead-letter list", message, e);
+                }
+            } catch (RuntimeException retryException) {
+                // The message stays in the processing list of this instance and is handed back on shutdown, or recovered by
+                // another instance once the lease runs out.
+                logger.error("Could not return news feed work item '{}' to the queue", message, retryException);
+            }
+        } finally {
+            capacity.release();
+        }
+    }
+
+    /**
+     * Pauses the current thread.
+     * @param millis Time to sleep in milliseconds.
+     * @return False if the thread was interrupted.
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Builds the handler that is invoked when a post cannot be queued. Every rejection is counted before the policy is applied.
+     * @param policy Name of the policy. See the REJECTION_POLICY static fields of this class for valid values.
+     * @return Handler to attach to the worker pool.
+     */
+    private RejectedExecutionHandler createRejectionHandler(String policy) {
+        switch (policy) {
+            case REJECTION_POLICY_CALLER_RUNS:
+                ThreadPoolExecutor.CallerRunsPolicy callerRuns = new ThreadPoolExecutor.CallerRunsPolicy();
+                return (runnable, executor) -> {
+                    rejectedTasks.incrementAndGet();
+                    callerRuns.rejectedExecution(runnable, executor);
+                };
+            case REJECTION_POLICY_BLOCK:
+                return (runnable, executor) -> {
+                    rejectedTasks.incrementAndGet();
+                    if (executor.isShutdown()) throw new RejectedExecutionException("News feed worker pool is shutting down");
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for a news feed worker", e);
+                    }
+                };
+            case REJECTION_POLICY_DISCARD:
+                return (runnable, executor) -> rejectedTasks.incrementAndGet();
+            default:
+                throw new IllegalArgumentException("Unknown news feed worker rejection policy '" + policy + "'");
         }
     }
 }
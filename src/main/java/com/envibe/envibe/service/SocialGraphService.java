@@ -0,0 +1,158 @@
+package com.envibe.envibe.service;
+
+import com.envibe.envibe.dao.CachedItemDao;
+import com.envibe.envibe.dao.FriendDao;
+import com.envibe.envibe.dao.SocialGraphCacheDao;
+import com.envibe.envibe.model.Relationship;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers questions about who follows whom from the social graph sets in the temporary datastore, without touching the
+ * persistent datastore once the sets are loaded. A set that is missing is loaded from the persistent datastore on first use,
+ * and the question is answered from what the load read.
+ * @see SocialGraphCacheDao
+ *
+ * @author ARMmaster17
+ */
+@Service
+public class SocialGraphService {
+
+    /**
+     * Number of followers read from the persistent datastore at a time while a followers set is loaded.
+     */
+    private static final int LOAD_CHUNK_SIZE = 5000;
+
+    /**
+     * Injected data access object for the social graph sets in the temporary datastore.
+     */
+    @Autowired
+    SocialGraphCacheDao socialGraphCacheDao;
+
+    /**
+     * Injected data access object for relationships in the persistent datastore.
+     */
+    @Autowired
+    FriendDao friendDao;
+
+    /**
+     * Returns the users that a user follows.
+     * @param username User to look up.
+     * @return Usernames of followed users, in alphabetical order.
+     */
+    public List<String> getFollowing(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        List<String> following = socialGraphCacheDao.readMembers(CachedItemDao.PURPOSE_FOLLOWING, username);
+        if (following == null) following = loadFollowing(username);
+        // Sets have no order, and callers show the list as it comes.
+        Collections.sort(following);
+        return following;
+    }
+
+    /**
+     * Checks if one user follows another with a single SISMEMBER.
+     * @param follower User that may follow.
+     * @param followee User that may be followed.
+     * @return True if follower follows followee.
+     */
+    public boolean isFollowing(@NotNull String follower, @NotNull String followee) {
+        Objects.requireNonNull(follower, "Method argument follower cannot be null");
+        Boolean following = socialGraphCacheDao.isMember(CachedItemDao.PURPOSE_FOLLOWING, follower, followee);
+        if (following != null) return following;
+        return loadFollowing(follower).contains(followee);
+    }
+
+    /**
+     * Finds the users that two users both follow with a single SINTER.
+     * @param username First user.
+     * @param otherUsername Second user.
+     * @return Usernames followed by both users, in alphabetical order.
+     */
+    public List<String> getMutualFollowing(@NotNull String username, @NotNull String otherUsername) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        Objects.requireNonNull(otherUsername, "Method argument otherUsername cannot be null");
+        List<String> mutual = socialGraphCacheDao.intersect(CachedItemDao.PURPOSE_FOLLOWING, username, otherUsername);
+        if (mutual == null) {
+            // At least one of the sets is missing, so intersect the snapshots that loading them reads instead.
+            Set<String> following = new HashSet<>(getFollowing(username));
+            mutual = new ArrayList<>(getFollowing(otherUsername));
+            mutual.retainAll(following);
+        }
+        Collections.sort(mutual);
+        return mutual;
+    }
+
+    /**
+     * Counts the users that a user follows with a single SCARD.
+     * @param username User to look up.
+     * @return Number of followed users.
+     */
+    public long getFollowingCount(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        Long count = socialGraphCacheDao.count(CachedItemDao.PURPOSE_FOLLOWING, username);
+        return count != null ? count : loadFollowing(username).size();
+    }
+
+    /**
+     * Counts the users that follow a user with a single SCARD.
+     * @param username User to look up.
+     * @return Number of followers.
+     */
+    public long getFollowerCount(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        Long count = socialGraphCacheDao.count(CachedItemDao.PURPOSE_FOLLOWERS, username);
+        return count != null ? count : loadFollowers(username);
+    }
+
+    /**
+     * Loads the set of users that a user follows from the persistent datastore. The snapshot that was read is returned either
+     * way, even if a follow or unfollow abandoned the load, since it is no older than the request.
+     * @param username User that owns the set.
+     * @return Usernames of followed users, in no particular order.
+     */
+    private List<String> loadFollowing(String username) {
+        // The load has to begin before the read, so that changes the read may miss abandon the load.
+        String token = socialGraphCacheDao.beginLoad(CachedItemDao.PURPOSE_FOLLOWING, username);
+        List<String> following = new ArrayList<>();
+        List<Relationship> relationships = friendDao.read(username);
+        // The read failed, so leave the set unloaded rather than caching that the user follows nobody.
+        if (relationships == null) return following;
+        for (Relationship relationship : relationships) {
+            following.add(relationship.getUserFriend());
+        }
+        socialGraphCacheDao.finishLoad(CachedItemDao.PURPOSE_FOLLOWING, username, token, following);
+        return following;
+    }
+
+    /**
+     * Loads the set of users that follow a user from the persistent datastore in keyset chunks, so large accounts are never
+     * held in memory at once. The set only counts as loaded once the last chunk is in.
+     * @param username User that owns the set.
+     * @return Number of followers that were read, even if a follow or unfollow abandoned the load.
+     */
+    private long loadFollowers(String username) {
+        // The load has to begin before the read, so that changes the read may miss abandon the load.
+        String token = socialGraphCacheDao.beginLoad(CachedItemDao.PURPOSE_FOLLOWERS, username);
+        AtomicLong count = new AtomicLong();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        friendDao.readFollowers(username, LOAD_CHUNK_SIZE, followers -> {
+            count.addAndGet(followers.size());
+            // Keep counting once the load was abandoned, but stop writing chunks nobody will read.
+            if (!abandoned.get() && !socialGraphCacheDao.addLoadChunk(CachedItemDao.PURPOSE_FOLLOWERS, username, token, followers)) {
+                abandoned.set(true);
+            }
+        });
+        if (!abandoned.get()) socialGraphCacheDao.finishLoad(CachedItemDao.PURPOSE_FOLLOWERS, username, token, Collections.emptyList());
+        return count.get();
+    }
+}
@@ -0,0 +1,167 @@
+package com.envibe.envibe.service;
+
+import com.envibe.envibe.dao.CachedItemDao;
+import com.envibe.envibe.dao.FriendDao;
+import com.envibe.envibe.model.CachedItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Suggests users to follow, most relevant first. See {@link FriendDao#readSuggestions(String, int)}. The suggestions are what
+ * the feed page shows, so they are cached per user in the temporary datastore and refreshed in the background once they get
+ * old, which keeps page views from querying the persistent datastore. {@link FriendDao} drops the cached suggestions whenever
+ * the user follows or unfollows someone.
+ *
+ * @author ARMmaster17
+ */
+@Service
+public class SuggestionService {
+
+    /**
+     * Logger for refreshes that failed.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SuggestionService.class);
+
+    /**
+     * Separates the creation time and the usernames in a cached page. Usernames cannot contain it. See
+     * {@link com.envibe.envibe.model.validation.validator.UsernameValidator}.
+     */
+    private static final String DELIMITER = CachedItemDao.TAG_SPLITTER;
+
+    /**
+     * Number of background refreshes that may wait for the refresher.
+     */
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /**
+     * Injected data access object for relationships in the persistent datastore.
+     */
+    @Autowired
+    FriendDao friendDao;
+
+    /**
+     * Injected data access object for the cached pages.
+     */
+    @Autowired
+    CachedItemDao cachedItemDao;
+
+    /**
+     * Number of users suggested at once.
+     */
+    @Value("${envibe.suggestions.page-size:20}")
+    private int pageSize;
+
+    /**
+     * Age in seconds after which cached suggestions are refreshed in the background. The old ones are shown until the refresh is done.
+     */
+    @Value("${envibe.suggestions.refresh-seconds:300}")
+    private long refreshSeconds;
+
+    /**
+     * Number of seconds cached suggestions are kept for users that stop visiting the feed page.
+     */
+    @Value("${envibe.suggestions.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    /**
+     * Runs background refreshes one at a time.
+     */
+    private ThreadPoolExecutor refresher;
+
+    /**
+     * Users whose suggestions are waiting for or being refreshed in the background, so a busy user is only refreshed once at a time.
+     */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Called as Spring starts up. Starts the background refresher.
+     */
+    @PostConstruct
+    private void init() {
+        refresher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "suggestion-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Called as Spring shuts down. Drops refreshes that have not started yet.
+     */
+    @PreDestroy
+    private void dismantle() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Returns the suggestions for a user. Served from the temporary datastore when cached, and loaded with bounded queries otherwise.
+     * @param username User to suggest follows to.
+     * @return Usernames the user does not follow yet, most relevant first.
+     */
+    public List<String> getSuggestions(@NotNull String username) {
+        Objects.requireNonNull(username, "Method argument username cannot be null");
+        CachedItem cached = cachedItemDao.read(cachedItemDao.generateTag(CachedItemDao.PURPOSE_SUGGESTIONS, username));
+        if (cached == null) return refresh(username);
+        String[] fields = cached.getPayload().split(Pattern.quote(DELIMITER), -1);
+        // The suggestions are still good enough to show while fresh ones are loaded in the background.
+        if (System.currentTimeMillis() - Long.parseLong(fields[0]) > TimeUnit.SECONDS.toMillis(refreshSeconds)) {
+            triggerRefresh(username);
+        }
+        List<String> suggestions = new ArrayList<>(Arrays.asList(fields).subList(1, fields.length));
+        // An empty list still holds the creation time and an empty string after it.
+        suggestions.remove("");
+        return suggestions;
+    }
+
+    /**
+     * Queues a background refresh of a user's suggestions unless one is already queued.
+     * @param username User to suggest follows to.
+     */
+    private void triggerRefresh(String username) {
+        if (!refreshing.add(username)) return;
+        try {
+            refresher.execute(() -> {
+                try {
+                    refresh(username);
+                } catch (RuntimeException e) {
+                    logger.warn("Could not refresh the follow suggestions of {}", username, e);
+                } finally {
+                    refreshing.remove(username);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The queue is full, so the cached suggestions are served as they are until a later page view gets a refresh in.
+            refreshing.remove(username);
+        }
+    }
+
+    /**
+     * Loads the suggestions for a user and caches them.
+     * @param username User to suggest follows to.
+     * @return Usernames the user does not follow yet, most relevant first.
+     */
+    private List<String> refresh(String username) {
+        List<String> suggestions = friendDao.readSuggestions(username, pageSize);
+        String payload = System.currentTimeMillis() + DELIMITER + String.join(DELIMITER, suggestions);
+        cachedItemDao.update(new CachedItem(CachedItemDao.PURPOSE_SUGGESTIONS, username, payload), ttlSeconds, TimeUnit.SECONDS);
+        return suggestions;
+    }
+}
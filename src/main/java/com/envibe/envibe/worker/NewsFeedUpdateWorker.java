@@ -1,18 +1,16 @@
 package com.envibe.envibe.worker;
 
-import com.envibe.envibe.dao.CachedItemDao;
+import com.envibe.envibe.dao.FriendDao;
+import com.envibe.envibe.dao.NewsFeedCacheDao;
 import com.envibe.envibe.dao.NewsItemDao;
-import com.envibe.envibe.dao.UserDao;
-import com.envibe.envibe.model.CachedItem;
 import com.envibe.envibe.model.NewsItem;
-import com.envibe.envibe.model.User;
+import com.envibe.envibe.service.FollowerCountService;
 import com.envibe.envibe.service.NewsFeedUpdateService;
-import com.envibe.envibe.service.RelationshipDisplayService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
 
 /**
  * Handles the updating of the news feed in the background whenever a new post is created. Launched by {@link NewsFeedUpdateService}.
@@ -30,149 +28,121 @@ public class NewsFeedUpdateWorker implements Runnable {
     NewsItemDao newsItemDao;
 
     /**
-     * Injected data access object for the User model.
+     * Injected data access object for news feed caches in the temporary datastore.
      */
     @Autowired
-    UserDao userDao;
+    NewsFeedCacheDao newsFeedCacheDao;
 
     /**
-     * Injected data access object for the CachedItem model.
+     * Injected data access object used to stream the followers of an author.
      */
     @Autowired
-    CachedItemDao cachedItemDao;
-
-    private static final String INTERNAL_USER_TAG = "INTERNAL";
+    FriendDao friendDao;
 
     /**
-     * Injected service for retrieving a list of followers of a specified user.
+     * Injected service for the cached number of followers of an author.
      */
     @Autowired
-    RelationshipDisplayService relationshipDisplayService;
+    FollowerCountService followerCountService;
 
     /**
-     * Constructor that retrieves the newest post ID from memcache.
+     * Number of followers above which an author's posts are merged into feeds at read time instead of pushed on write.
      */
-    public NewsFeedUpdateWorker() {
+    @Value("${envibe.feed.fanout.follower-threshold:10000}")
+    private int followerThreshold;
 
-    }
+    /**
+     * Number of followers loaded from the persistent datastore at a time during fan-out.
+     */
+    @Value("${envibe.feed.fanout.follower-chunk-size:5000}")
+    private int followerChunkSize;
 
     /**
-     * Triggered by super Thread instance. Runs the background task until completion, then the Thread super class performs automated garbage collection.
+     * ID of the post that this worker adds to or removes from follower feeds.
      */
-    public void run() {
-        // Update and save all necessary friend newsfeeds.
-        updateFeeds();
-    }
+    private long post_id;
 
     /**
-     * Retrieves a post ID from the pool of recent posts that need to be processed.
-     * @return Next post ID in queue.
+     * Author of a deleted post that this worker removes from follower feeds. Null when the worker adds a new post.
      */
-    private int getNextPostId() {
-        // Generate the tag to search for in the temporary keystore.
-        String serviceTag = cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_WORKER_PASSTHROUGH, INTERNAL_USER_TAG);
-        // Find the post ID that needs to be updated. Allow the DAO to do the delete to prevent a race condition.
-        return Integer.parseInt(cachedItemDao.readAndDelete(serviceTag).getPayload());
-    }
+    private String retractedAuthor;
 
     /**
-     *  Returns the username of the user that submitted the specified post.
-     * @param nextPostId Assigned post ID to search for.
-     * @return User object associated with the author of the specified post.
+     * Default constructor. Used by Spring when the worker is registered as a component.
      */
-    private User getUserOfNextPost(int nextPostId) {
-        // Pull the full post details from the database.
-        NewsItem originalPost = newsItemDao.read(nextPostId);
-        // Pull the entire profile of the user who created the post.
-        return userDao.read(originalPost.getUsername());
+    public NewsFeedUpdateWorker() {
+
     }
 
     /**
-     * Gets a list of all usernames of accounts that should have their newsfeeds updated because of the specified post.
-     * @param post_id Assigned post ID.
-     * @return List of usernames of followers.
+     * Creates a worker that adds the specified post to follower feeds.
+     * @param post_id ID of the post claimed from the news feed work queue.
      */
-    private ArrayList<String> getAffectedFriends(int post_id) {
-        User poster = getUserOfNextPost(post_id);
-        // Get a list of all the friends of the original user. Use Strings since we don't need any friend User attributes.
-        ArrayList<String> friends = new ArrayList<>(relationshipDisplayService.FriendsList(poster.getUsername()));
-        // Allow users to see their own posts on their feed.
-        if (friends == null) friends = new ArrayList<>();
-        friends.add(poster.getUsername());
-        return friends;
+    public NewsFeedUpdateWorker(long post_id) {
+        this.post_id = post_id;
     }
 
     /**
-     * Gets a collection of all the caches that need to be updated because of the specified post.
-     * @param post_id Assigned post ID.
-     * @return Collection of newsfeed caches to update.
+     * Creates a worker that removes the specified deleted post from the same feeds it was added to.
+     * @param post_id ID of the deleted post.
+     * @param author Username of the account that created the post. Needed because the post is no longer in the database.
      */
-    private List<CachedItem> getAllFriendCaches(int post_id) {
-
-        // Get a list of all usernames whose newsfeeds are affected by this post.
-        ArrayList<String> friends = getAffectedFriends(post_id);
-        // Create a list to hold all of the cached newsfeeds.
-        ArrayList<CachedItem> caches = new ArrayList<>();
-        // Load the caches into the result list.
-        for (String friend : friends) {
-            caches.add(getOrCreateFeed(friend));
-        }
-        return caches;
+    public NewsFeedUpdateWorker(long post_id, String author) {
+        this.post_id = post_id;
+        this.retractedAuthor = author;
     }
 
     /**
-     * Gets a newsfeed cache associated with a specific user. If it doesn't exist, one is initialized.
-     * @param friend_name Username associated with newsfeed cache to look up.
-     * @return Newsfeed cache for specified user.
+     * Triggered by the worker pool in {@link NewsFeedUpdateService}. Runs the background task until completion, then the pool thread is reused for the next post.
      */
-    private CachedItem getOrCreateFeed(String friend_name) {
-        // Generate a tag from our service name and the friend's username.
-        String tag = cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_CACHE, friend_name);
-        // Get a copy of the newsfeed cache for the specified user.
-        CachedItem result = cachedItemDao.read(tag);
-        // Check if the cache exists.
-        if(result == null) {
-            // Cache does not exist. Create a new one.
-            //result = new CachedItem(tag, "");
-            result = new CachedItem(cachedItemDao.PURPOSE_NEWS_FEED_CACHE, friend_name, "");
+    public void run() {
+        if (retractedAuthor != null) {
+            retractFeeds(post_id, retractedAuthor);
+            return;
         }
-        return result;
+        // Update and save all necessary friend newsfeeds.
+        updateFeeds(post_id);
     }
 
     /**
-     * Gets a post ID assignment, then retrieves, updates, and saves all newsfeeds that need to be updated.
+     * Adds the specified post to the top of every newsfeed that needs to be updated because of it.
+     * @param post_id Assigned post ID.
      */
-    private void updateFeeds() {
-        // Get the next available post ID from the pool of posts that need to be processed.
-        int post_id = getNextPostId();
-        // Iterate through all friend caches, one at a time.
-        for (CachedItem feed : getAllFriendCaches(post_id)) {
-            // Get the updated feed string from the sorting algorithm.
-            String updatedFeed = insertPostIntoFeed(feed.getPayload(), post_id);
-            // Add the updated feed string back into the feed cache.
-            feed.setPayload(updatedFeed);
-            // Save the updated cache item into the permanent keystore.
-            cachedItemDao.update(feed);
+    private void updateFeeds(long post_id) {
+        // Pull the full post details from the database.
+        NewsItem post = newsItemDao.read(post_id);
+        // Posts are committed before they are queued, so a missing post was deleted before it was fanned out and is simply
+        // dropped. Its tombstone may already be gone if the retraction finished first.
+        if (post == null) return;
+        // Feeds are sorted by creation time, newest first.
+        long score = post.getPost_date().getTime();
+        // Always index the post under its author, so it can be merged into feeds at read time if the author is in pull mode.
+        newsFeedCacheDao.pushAuthor(post.getUsername(), post_id, score);
+        // Skip the fan-out for authors that are already in pull mode.
+        if (newsFeedCacheDao.isPullAuthor(post.getUsername())) return;
+        // Switch authors with too many followers to pull mode instead of writing to every follower feed. The cached count
+        // decides this without loading a single follower.
+        if (followerCountService.getFollowerCount(post.getUsername()) > followerThreshold) {
+            newsFeedCacheDao.addPullAuthor(post.getUsername());
+            return;
         }
+        // Allow users to see their own posts on their feed.
+        newsFeedCacheDao.push(post.getUsername(), post_id, score);
+        // Push the post into the feed of every follower, one chunk of followers at a time, in pipelined batches. The DAO trims
+        // each feed to its maximum length.
+        friendDao.readFollowers(post.getUsername(), followerChunkSize, followers -> newsFeedCacheDao.pushAll(followers, post_id, score));
     }
 
     /**
-     * Implements algorithm that re-arranges newsfeed cache strings.
-     * @param feed Existing cached feed in permanent keystore.
-     * @param post_id Post to insert into feeds.
-     * @return Updated newsfeed cache string.
+     * Removes a deleted post from every newsfeed it was added to, and from its author's index. Reads already skip the post
+     * because it is tombstoned, so this frees the space it takes up and then drops the tombstone.
+     * @param post_id ID of the deleted post.
+     * @param author Username of the account that created the post.
      */
-    private String insertPostIntoFeed(String feed, int post_id) {
-        // TODO: Insert fancy algorithm here. For now just put it at the top of the feed and trim it if it's too big.
-        String result;
-        // Check how many items the feed currently has.
-        if(feed.isEmpty()) {
-            // Feed is empty, only insert the new post ID.
-            result = String.valueOf(post_id);
-        } else {
-            // Feed is not empty, insert the new post ID with a delimiter.
-            result = String.valueOf(post_id) + CachedItemDao.PAYLOAD_LIST_DELIMITER + feed;
-        }
-        return result;
+    private void retractFeeds(long post_id, String author) {
+        newsFeedCacheDao.removeAll(author, Collections.singletonList(author), post_id);
+        friendDao.readFollowers(author, followerChunkSize, followers -> newsFeedCacheDao.removeAll(author, followers, post_id));
+        // The post is gone from every feed, so reads no longer need to skip it.
+        newsFeedCacheDao.removeTombstone(post_id);
     }
 }
@@ -0,0 +1,157 @@
+package com.envibe.envibe.worker;
+
+import com.envibe.envibe.dao.CachedItemDao;
+import com.envibe.envibe.dao.NewsFeedCacheDao;
+import com.envibe.envibe.dao.NewsItemDao;
+import com.envibe.envibe.dao.WorkQueueDao;
+import com.envibe.envibe.dto.FeedCursor;
+import com.envibe.envibe.model.NewsItem;
+import com.envibe.envibe.service.NewsFeedUpdateService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a follower's news feed in line with the users they follow. On follow, the newest posts of the followed users are merged
+ * into the feed. On unfollow, their posts are removed from it. Every pending change of a follower is applied by a single run,
+ * so the feed is only written once per run for each direction. Launched by {@link NewsFeedUpdateService}.
+ * @see com.envibe.envibe.service.NewsFeedUpdateService
+ *
+ * @author ARMmaster17
+ */
+public class RelationshipFeedWorker implements Runnable {
+
+    /**
+     * Injected data access object for the NewsItem model.
+     */
+    @Autowired
+    NewsItemDao newsItemDao;
+
+    /**
+     * Injected data access object for news feed caches in the temporary datastore.
+     */
+    @Autowired
+    NewsFeedCacheDao newsFeedCacheDao;
+
+    /**
+     * Injected data access object for the batch of pending relationship changes of the follower.
+     */
+    @Autowired
+    WorkQueueDao workQueueDao;
+
+    /**
+     * Number of the newest posts of a followed user that are merged into the follower's feed.
+     */
+    @Value("${envibe.feed.follow.backfill-count:50}")
+    private int backfillCount;
+
+    /**
+     * Maximum number of posts kept in a single feed. Only this many of the newest posts of an unfollowed user are looked up for removal.
+     */
+    @Value("${envibe.feed.max-length:500}")
+    private int maxLength;
+
+    /**
+     * Username of the account whose feed changes.
+     */
+    private final String follower;
+
+    /**
+     * Usernames of the accounts that were followed. Read from the pending changes of the follower when the worker runs, unless
+     * the worker was created for a single change.
+     */
+    private List<String> followed = new ArrayList<>();
+
+    /**
+     * Usernames of the accounts that were unfollowed. Read from the pending changes of the follower when the worker runs, unless
+     * the worker was created for a single change.
+     */
+    private List<String> unfollowed = new ArrayList<>();
+
+    /**
+     * True if the changes are read from the pending changes of the follower.
+     */
+    private final boolean batched;
+
+    /**
+     * Creates a worker that applies every pending relationship change of a follower.
+     * @param follower Username of the account whose feed changes.
+     */
+    public RelationshipFeedWorker(String follower) {
+        this.follower = follower;
+        this.batched = true;
+    }
+
+    /**
+     * Creates a worker for a single relationship change claimed from the news feed work queue.
+     * @param follower Username of the account whose feed changes.
+     * @param followees Usernames of the accounts that were followed or unfollowed.
+     * @param follow True for a follow, false for an unfollow.
+     */
+    public RelationshipFeedWorker(String follower, List<String> followees, boolean follow) {
+        this.follower = follower;
+        this.batched = false;
+        if (follow) {
+            followed = followees;
+        } else {
+            unfollowed = followees;
+        }
+    }
+
+    /**
+     * Triggered by the worker pool in {@link NewsFeedUpdateService}. Applies the relationship changes to the follower's feed.
+     */
+    public void run() {
+        Map<String, String> changes = Collections.emptyMap();
+        if (batched) {
+            changes = workQueueDao.openBatch(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, follower);
+            changes.forEach((followee, type) -> {
+                if (NewsFeedUpdateService.MESSAGE_FOLLOW.equals(type)) followed.add(followee);
+                else unfollowed.add(followee);
+            });
+        }
+        if (!unfollowed.isEmpty()) retract();
+        if (!followed.isEmpty()) backfill();
+        // Only now that the feed is up to date may the changes leave the batch, so a run that fails reads them again on retry.
+        workQueueDao.closeBatch(CachedItemDao.PURPOSE_NEWS_FEED_WORK_QUEUE, follower, changes);
+    }
+
+    /**
+     * Merges the newest posts of every followed user into the follower's feed in a single write.
+     */
+    private void backfill() {
+        // A partial feed would hide the missing feed from the lazy rebuild, so leave it to the next read to rebuild the whole
+        // feed instead. The new relationships are already in the persistent datastore, so the rebuild includes them. A feed
+        // that is being rebuilt, or came back empty within the cooldown, is written into like fan-out does, since the rebuild
+        // merges with it and may have read the relationships before they changed.
+        if (!newsFeedCacheDao.exists(follower) && !newsFeedCacheDao.isRebuilding(follower)) return;
+        List<FeedCursor> positions = new ArrayList<>();
+        for (String followee : followed) {
+            // Posts by pull authors are merged in at read time, so they don't need to be copied.
+            if (newsFeedCacheDao.isPullAuthor(followee)) continue;
+            for (NewsItem post : newsItemDao.readNewest(followee, backfillCount)) {
+                positions.add(new FeedCursor(post.getPost_date().getTime(), post.getPost_id()));
+            }
+        }
+        newsFeedCacheDao.rebuild(follower, positions);
+    }
+
+    /**
+     * Removes the posts of every unfollowed user from the follower's feed in a single write.
+     */
+    private void retract() {
+        Set<Long> postIds = new HashSet<>();
+        for (String followee : unfollowed) {
+            for (NewsItem post : newsItemDao.readNewest(followee, maxLength)) {
+                postIds.add(post.getPost_id());
+            }
+        }
+        newsFeedCacheDao.remove(follower, postIds);
+    }
+}
@@ -0,0 +1,36 @@
+package db.migration;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Creates the sequence that post IDs are allocated from and makes it the default of newspost.post_id. Written in Java because
+ * the sequence has to start after the highest existing post ID, and PostgreSQL and H2 have no common syntax to restart a
+ * sequence from a query. Each value of the sequence reserves a block of 50 IDs, so that
+ * {@link com.envibe.envibe.dao.PostIdAllocator} can hand out a whole block per round trip.
+ *
+ * @author ARMmaster17
+ */
+public class V10__Create_Sequence_newspost extends BaseJavaMigration {
+
+    /**
+     * Runs the migration.
+     * @param context Flyway context that holds the connection to migrate.
+     * @throws Exception If a statement fails.
+     */
+    @Override
+    public void migrate(Context context) throws Exception {
+        try (Statement statement = context.getConnection().createStatement()) {
+            long start;
+            try (ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(post_id), 0) + 1 FROM newspost")) {
+                resultSet.next();
+                start = resultSet.getLong(1);
+            }
+            statement.execute("CREATE SEQUENCE newspost_id_seq START WITH " + start + " INCREMENT BY 50");
+            statement.execute("ALTER TABLE newspost ALTER COLUMN post_id SET DEFAULT nextval('newspost_id_seq')");
+        }
+    }
+}
@@ -0,0 +1,2 @@
+ALTER TABLE newspost ALTER COLUMN post_id SET DATA TYPE BIGINT;
+ALTER TABLE newspost ALTER COLUMN post_id SET DEFAULT nextval('newspost_id_seq');
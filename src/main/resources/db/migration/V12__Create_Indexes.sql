@@ -0,0 +1,11 @@
+-- Null ordering is spelled out so that H2 and PostgreSQL both see the index as sorted the same way as the queries that read
+-- the newest posts of a user. Every column is NOT NULL, so it does not change any results.
+CREATE INDEX newspost_user_date_idx ON newspost (user_name NULLS FIRST, post_date DESC NULLS LAST, post_id DESC NULLS LAST);
+
+CREATE TABLE user_relationship_distinct AS SELECT DISTINCT user_name, user_friend FROM user_relationship;
+DELETE FROM user_relationship;
+INSERT INTO user_relationship (user_name, user_friend) SELECT user_name, user_friend FROM user_relationship_distinct;
+DROP TABLE user_relationship_distinct;
+
+ALTER TABLE user_relationship ADD CONSTRAINT user_relationship_pkey PRIMARY KEY (user_name, user_friend);
+CREATE INDEX user_relationship_friend_idx ON user_relationship (user_friend, user_name);
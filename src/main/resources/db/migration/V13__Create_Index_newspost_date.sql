@@ -0,0 +1,3 @@
+-- Finds the users that posted recently for the news feed warm-up without scanning every post. user_name is included so that
+-- PostgreSQL can answer the query from the index alone.
+CREATE INDEX newspost_date_user_idx ON newspost (post_date, user_name);
@@ -0,0 +1,70 @@
+package com.envibe.envibe.benchmark;
+
+import com.envibe.envibe.config.CachedItemRedisSerializer;
+import com.envibe.envibe.model.CachedItem;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * Compares the stored size and the encode and decode time of the JDK and compact formats of {@link CachedItemRedisSerializer}
+ * for typical cache items. Not run by the test suite. Needs no Redis instance.
+ *
+ * @author ARMmaster17
+ */
+public class CodecBenchmark {
+
+    /**
+     * Number of untimed iterations that let the JIT compile both codecs.
+     */
+    private static final int WARMUP = 200000;
+
+    /**
+     * Number of timed iterations per codec and item.
+     */
+    private static final int ITERATIONS = 1000000;
+
+    /**
+     * Prints one line per codec and item.
+     * @param args Not used.
+     */
+    public static void main(String[] args) {
+        CachedItem[] items = {
+                new CachedItem("GENERAL", "listener", "1"),
+                new CachedItem("AUTHORCARD", "artist", "{\"username\":\"artist\",\"first_name\":\"bigname\",\"last_name\":\"band\",\"image_link\":\"https://example.com/a.jpg\"}"),
+                new CachedItem("FEEDENTRY", "1042", "{\"post_id\":1042,\"username\":\"bigname band\",\"post_date\":1760745600000,\"content\":\"New single out friday, see you at the release show!\",\"user_image\":\"https://example.com/a.jpg\"}")
+        };
+        RedisSerializer<Object> jdk = new CachedItemRedisSerializer(false);
+        RedisSerializer<Object> compact = new CachedItemRedisSerializer(true);
+        System.out.printf("%-11s %-8s %8s %12s %12s%n", "purpose", "codec", "bytes", "encode ns", "decode ns");
+        for (CachedItem item : items) {
+            measure(item, "jdk", jdk);
+            measure(item, "compact", compact);
+        }
+    }
+
+    /**
+     * Times one codec on one item and prints the result.
+     * @param item Item to encode.
+     * @param name Name of the codec.
+     * @param serializer Codec to measure.
+     */
+    private static void measure(CachedItem item, String name, RedisSerializer<Object> serializer) {
+        byte[] bytes = serializer.serialize(item);
+        // Keep a running checksum so the JIT can't drop the loops.
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += serializer.serialize(item).length;
+            sink += ((CachedItem) serializer.deserialize(bytes)).getPayload().length();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += serializer.serialize(item).length;
+        }
+        long encode = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += ((CachedItem) serializer.deserialize(bytes)).getPayload().length();
+        }
+        long decode = (System.nanoTime() - start) / ITERATIONS;
+        System.out.printf("%-11s %-8s %8d %12d %12d%s%n", item.getPurpose(), name, bytes.length, encode, decode, sink == 42 ? " " : "");
+    }
+}
@@ -0,0 +1,71 @@
+package com.envibe.envibe.benchmark;
+
+import com.envibe.envibe.EnvibeApplication;
+import com.envibe.envibe.dao.CachedItemDao;
+import com.envibe.envibe.dao.NewsFeedCacheDao;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long it takes to fan a single post out to a growing number of follower feeds, comparing one round trip per
+ * follower against the pipelined batches of {@link NewsFeedCacheDao#pushAll(java.util.Collection, int, long)}. Not run by
+ * the test suite. Start it from the IDE or with the exec plugin against a running Redis instance (REDIS_URL).
+ *
+ * @author ARMmaster17
+ */
+public class FanOutBenchmark {
+
+    /**
+     * Follower counts to measure.
+     */
+    private static final int[] FOLLOWER_COUNTS = { 100, 1000, 10000, 50000 };
+
+    /**
+     * Number of timed runs per follower count. The fastest run is reported.
+     */
+    private static final int RUNS = 5;
+
+    /**
+     * Boots the application without a web server and prints one line per follower count.
+     * @param args Passed through to Spring.
+     */
+    public static void main(String[] args) {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(EnvibeApplication.class).web(WebApplicationType.NONE).run(args)) {
+            NewsFeedCacheDao newsFeedCacheDao = context.getBean(NewsFeedCacheDao.class);
+            CachedItemDao cachedItemDao = context.getBean(CachedItemDao.class);
+            StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+            System.out.printf("%10s %15s %15s%n", "followers", "sequential ms", "pipelined ms");
+            for (int followerCount : FOLLOWER_COUNTS) {
+                // Generate throwaway follower names and the keys of their feeds so they can be removed afterwards.
+                List<String> followers = new ArrayList<>(followerCount);
+                List<String> keys = new ArrayList<>(followerCount);
+                for (int i = 0; i < followerCount; i++) {
+                    String follower = "benchmark-follower-" + i;
+                    followers.add(follower);
+                    keys.add(cachedItemDao.generateTag(CachedItemDao.PURPOSE_NEWS_FEED_CACHE, follower));
+                }
+                long sequential = Long.MAX_VALUE;
+                long pipelined = Long.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++) {
+                    long start = System.nanoTime();
+                    for (String follower : followers) {
+                        newsFeedCacheDao.push(follower, run, run);
+                    }
+                    sequential = Math.min(sequential, System.nanoTime() - start);
+                    stringRedisTemplate.delete(keys);
+
+                    start = System.nanoTime();
+                    newsFeedCacheDao.pushAll(followers, run, run);
+                    pipelined = Math.min(pipelined, System.nanoTime() - start);
+                    stringRedisTemplate.delete(keys);
+                }
+                System.out.printf("%10d %15.1f %15.1f%n", followerCount, sequential / 1e6, pipelined / 1e6);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.envibe.envibe.dao;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Query plan regression tests for the hot lookups by user. Runs EXPLAIN against whichever database JDBC_DATABASE_URL points at,
+ * H2 or PostgreSQL, and checks that the plan uses the index created for the query. The queries are the ones the data access
+ * objects run, with their parameters bound the same way, so a change to a query is covered here without copying it. PostgreSQL
+ * prefers a sequential scan on tables as small as the test data, so sequential scans are switched off for the session to see
+ * which index it would pick. Lives next to the data access objects because their queries are package-private.
+ * @see NewsItemDao
+ * @see FriendDao
+ * @see UserDao
+ *
+ * @author ARMmaster17
+ */
+@SpringBootTest(webEnvironment= SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class FunctionalQueryPlanTests {
+
+    /**
+     * Oldest post date used for the queries that read recent posts.
+     */
+    private static final Timestamp SINCE = Timestamp.valueOf("2020-01-01 00:00:00");
+
+    /**
+     * Injected JDBC connection object to run EXPLAIN against. See {@link JdbcTemplate}.
+     */
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    /**
+     * Tests that the newest posts of a user are read from newspost_user_date_idx, already in order. See NewsItemDao#readNewest.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadNewestByUsernameUsesIndex() throws Exception {
+        String plan = explain(NewsItemDao.queryReadNewestByUsername, "admin", 10);
+        assertThat(plan).containsIgnoringCase("newspost_user_date_idx");
+        if (isPostgres()) {
+            assertThat(plan).doesNotContain("Sort");
+        } else {
+            assertThat(plan).contains("index sorted");
+        }
+    }
+
+    /**
+     * Tests that a rebuilt news feed reads every author's newest posts from newspost_user_date_idx instead of scanning and
+     * sorting all of their posts. See NewsItemDao#readFeed, here for two authors.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadFeedUsesIndexPerAuthor() throws Exception {
+        String plan = explain(NewsItemDao.queryReadNewestOfAll(2), "listener", 200, "admin", 200, 200);
+        // One index scan per author.
+        assertThat(plan.split("(?i)newspost_user_date_idx", -1)).hasSize(3);
+        if (isPostgres()) {
+            assertThat(plan).doesNotContain("Seq Scan");
+        } else {
+            // Every branch reads its posts already in order, so only the final merge of the branches sorts.
+            assertThat(plan.split("index sorted", -1)).hasSize(3);
+        }
+    }
+
+    /**
+     * Tests that the news feed warm-up reads the recent posts of every author from newspost_user_date_idx. See
+     * NewsItemDao#streamNewestSince, here for two authors.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testStreamNewestSinceUsesIndexPerAuthor() throws Exception {
+        String plan = explain(NewsItemDao.queryReadNewestSinceOfAll(2), "listener", SINCE, 500, "admin", SINCE, 500);
+        // One index scan per author.
+        assertThat(plan.split("(?i)newspost_user_date_idx", -1)).hasSize(3);
+        if (isPostgres()) assertThat(plan).doesNotContain("Seq Scan");
+    }
+
+    /**
+     * Tests that the users who posted recently are found from newspost_date_user_idx instead of a table scan. See
+     * NewsItemDao#readAuthorsSince.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadAuthorsSinceUsesDateIndex() throws Exception {
+        assertThat(explain(NewsItemDao.queryReadAuthorsSince, SINCE)).containsIgnoringCase("newspost_date_user_idx");
+    }
+
+    /**
+     * Tests that the users someone follows are read from the primary key of user_relationship. See FriendDao#read.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadFollowingUsesPrimaryKey() throws Exception {
+        // H2 names the index behind a primary key after the key rather than after the constraint.
+        String index = isPostgres() ? "user_relationship_pkey" : "PRIMARY_KEY";
+        assertThat(explain(FriendDao.queryRead, "admin")).containsIgnoringCase(index);
+    }
+
+    /**
+     * Tests that the followers of a user are read from the reverse index of user_relationship. See FriendDao#readFollowers.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadFollowersUsesReverseIndex() throws Exception {
+        assertThat(explain(FriendDao.queryReadFollowersPage, "admin", "", 5000)).containsIgnoringCase("user_relationship_friend_idx");
+    }
+
+    /**
+     * Tests that followers are counted from an index instead of a table scan. See FriendDao#countFollowers. H2 may pick the index
+     * it created for the foreign key on user_friend instead, which serves the count just as well.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testCountFollowersUsesIndex() throws Exception {
+        String plan = explain(FriendDao.queryCountFollowers, "admin");
+        if (isPostgres()) {
+            assertThat(plan).containsIgnoringCase("user_relationship_friend_idx");
+        } else {
+            assertThat(plan).doesNotContain("tableScan");
+        }
+    }
+
+    /**
+     * Tests that follow suggestions walk user_account in page order and probe the primary key of user_relationship for every candidate.
+     * See FriendDao#readSuggestions.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadSuggestionsUsesPrimaryKey() throws Exception {
+        String plan = explain(FriendDao.queryReadSuggestionsPage, "", "admin", "admin", 20);
+        if (isPostgres()) {
+            assertThat(plan).containsIgnoringCase("user_relationship_pkey");
+        } else {
+            // Both tables are walked by their primary keys, and user_account already in the order of the page.
+            assertThat(plan).doesNotContain("tableScan").contains("index sorted");
+        }
+    }
+
+    /**
+     * Tests that suggestions ranked by mutual follows read both sides of the join from the primary key of user_relationship.
+     * See FriendDao#readSuggestions.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadMutualSuggestionsUsesPrimaryKey() throws Exception {
+        String plan = explain(FriendDao.queryReadMutualSuggestions, "listener", FriendDao.suggestionSampleSize, "listener", "listener", 20);
+        if (isPostgres()) {
+            assertThat(plan).containsIgnoringCase("user_relationship_pkey").doesNotContain("Seq Scan");
+        } else {
+            assertThat(plan).doesNotContain("tableScan");
+        }
+    }
+
+    /**
+     * Tests that pages of users are read from the primary key of user_account, already in order. See UserDao#readPage.
+     * @throws Exception Validation assertion failed.
+     */
+    @Test
+    public void testReadUserPageUsesPrimaryKey() throws Exception {
+        String plan = explain(UserDao.queryReadPage, "admin", 1000);
+        if (isPostgres()) {
+            assertThat(plan).containsIgnoringCase("user_account_pkey").doesNotContain("Sort");
+        } else {
+            assertThat(plan).contains("PRIMARY_KEY").contains("index sorted");
+        }
+    }
+
+    /**
+     * Checks which database the tests run against.
+     * @return True for PostgreSQL, false for H2.
+     */
+    private boolean isPostgres() {
+        return jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                connection.getMetaData().getDatabaseProductName().toLowerCase().contains("postgres"));
+    }
+
+    /**
+     * Runs EXPLAIN on a prepared query on a single connection.
+     * @param query Query to explain, with placeholders for its parameters.
+     * @param parameters Values bound to the placeholders, in order.
+     * @return Every line of the plan, joined by line breaks.
+     */
+    private String explain(String query, Object... parameters) {
+        boolean postgres = isPostgres();
+        return jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+            try (Statement statement = connection.createStatement();
+                 PreparedStatement explain = connection.prepareStatement("EXPLAIN " + query)) {
+                for (int i = 0; i < parameters.length; i++) {
+                    explain.setObject(i + 1, parameters[i]);
+                }
+                if (postgres) statement.execute("SET enable_seqscan = off");
+                StringBuilder plan = new StringBuilder();
+                try (ResultSet resultSet = explain.executeQuery()) {
+                    while (resultSet.next()) {
+                        plan.append(resultSet.getString(1)).append('\n');
+                    }
+                } finally {
+                    if (postgres) statement.execute("RESET enable_seqscan");
+                }
+                return plan.toString();
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package com.envibe.envibe.unittest;
+
+import com.envibe.envibe.UnitTest;
+import com.envibe.envibe.config.CachedItemRedisSerializer;
+import com.envibe.envibe.model.CachedItem;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachedItemRedisSerializerUnitTest extends UnitTest {
+
+    private static final CachedItemRedisSerializer compactSerializer = new CachedItemRedisSerializer(true);
+
+    private static final String TEST_PURPOSE = "FEEDENTRY";
+    private static final String TEST_USER_TAG = "listener";
+    private static final String TEST_PAYLOAD = "{\"content\":\"héllo ♫\"}";
+
+    @Test
+    public void testCompactRoundTrip() {
+        CachedItem decoded = (CachedItem) compactSerializer.deserialize(compactSerializer.serialize(new CachedItem(TEST_PURPOSE, TEST_USER_TAG, TEST_PAYLOAD)));
+        assertThat(decoded.getPurpose()).isEqualTo(TEST_PURPOSE);
+        assertThat(decoded.getUserTag()).isEqualTo(TEST_USER_TAG);
+        assertThat(decoded.getPayload()).isEqualTo(TEST_PAYLOAD);
+    }
+
+    @Test
+    public void testCompactNullFields() {
+        CachedItem decoded = (CachedItem) compactSerializer.deserialize(compactSerializer.serialize(new CachedItem(TEST_PURPOSE, TEST_USER_TAG, null)));
+        assertThat(decoded.getPayload()).isNull();
+    }
+
+    @Test
+    public void testReadsLegacyFormat() {
+        byte[] legacy = new JdkSerializationRedisSerializer().serialize(new CachedItem(TEST_PURPOSE, TEST_USER_TAG, TEST_PAYLOAD));
+        CachedItem decoded = (CachedItem) compactSerializer.deserialize(legacy);
+        assertThat(decoded.getPayload()).isEqualTo(TEST_PAYLOAD);
+    }
+
+    @Test
+    public void testCompactIsSmaller() {
+        CachedItem cachedItem = new CachedItem(TEST_PURPOSE, TEST_USER_TAG, TEST_PAYLOAD);
+        assertThat(compactSerializer.serialize(cachedItem).length).isLessThan(new JdkSerializationRedisSerializer().serialize(cachedItem).length);
+    }
+}
@@ -0,0 +1,50 @@
+package com.envibe.envibe.unittest;
+
+import com.envibe.envibe.UnitTest;
+import com.envibe.envibe.dto.FeedCursor;
+import com.envibe.envibe.exception.InvalidFeedCursorException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FeedCursorUnitTest extends UnitTest {
+
+    private static final byte[] KEY = "test-secret".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testRoundTrip() throws InvalidFeedCursorException {
+        FeedCursor cursor = FeedCursor.decode(new FeedCursor(1792284979735L, 9007199254740991L).encode(KEY), KEY);
+        assertThat(cursor.getScore()).isEqualTo(1792284979735L);
+        assertThat(cursor.getPost_id()).isEqualTo(9007199254740991L);
+    }
+
+    @Test
+    public void testUrlSafe() {
+        assertThat(new FeedCursor(Long.MAX_VALUE, Long.MAX_VALUE).encode(KEY)).matches("[A-Za-z0-9_-]+");
+    }
+
+    @Test
+    public void testMalformed() {
+        assertThatThrownBy(() -> FeedCursor.decode("not a cursor!", KEY)).isInstanceOf(InvalidFeedCursorException.class);
+        // Valid base64 of "foo", which is too short.
+        assertThatThrownBy(() -> FeedCursor.decode("Zm9v", KEY)).isInstanceOf(InvalidFeedCursorException.class);
+        // Valid base64 of the old unsigned "score:post_id" format.
+        assertThatThrownBy(() -> FeedCursor.decode("MTc5MjI4NDk3OTczNTo0Mg", KEY)).isInstanceOf(InvalidFeedCursorException.class);
+    }
+
+    @Test
+    public void testForged() {
+        byte[] bytes = Base64.getUrlDecoder().decode(new FeedCursor(1792284979735L, 42L).encode(KEY));
+        // Point the cursor at another post but keep the signature.
+        bytes[16]++;
+        String forged = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        assertThatThrownBy(() -> FeedCursor.decode(forged, KEY)).isInstanceOf(InvalidFeedCursorException.class);
+        // Signed with another key.
+        String foreign = new FeedCursor(1792284979735L, 42L).encode("other-secret".getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> FeedCursor.decode(foreign, KEY)).isInstanceOf(InvalidFeedCursorException.class);
+    }
+}
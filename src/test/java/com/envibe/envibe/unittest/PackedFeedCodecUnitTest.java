@@ -0,0 +1,42 @@
+package com.envibe.envibe.unittest;
+
+import com.envibe.envibe.UnitTest;
+import com.envibe.envibe.dao.NewsFeedCacheDao;
+import com.envibe.envibe.dao.PackedFeedCodec;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PackedFeedCodecUnitTest extends UnitTest {
+
+    private static final List<Long> TEST_FEED = Arrays.asList(9007199254740991L, 1000000L, 999998L, 999999L, 12L, 5L, 0L);
+
+    @Test
+    public void testRoundTrip() {
+        byte[] encoded = PackedFeedCodec.encode(TEST_FEED);
+        assertThat(PackedFeedCodec.count(encoded)).isEqualTo(TEST_FEED.size());
+        assertThat(PackedFeedCodec.decode(encoded, NewsFeedCacheDao.FROM_BEGINNING, 100)).isEqualTo(TEST_FEED);
+    }
+
+    @Test
+    public void testPage() {
+        byte[] encoded = PackedFeedCodec.encode(TEST_FEED);
+        assertThat(PackedFeedCodec.decode(encoded, NewsFeedCacheDao.FROM_BEGINNING, 2)).containsExactly(9007199254740991L, 1000000L);
+        assertThat(PackedFeedCodec.decode(encoded, 999998, 2)).containsExactly(12L, 5L);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertThat(PackedFeedCodec.decode(null, NewsFeedCacheDao.FROM_BEGINNING, 10)).isEmpty();
+        assertThat(PackedFeedCodec.count(PackedFeedCodec.encode(Arrays.asList()))).isZero();
+    }
+
+    @Test
+    public void testCompact() {
+        // Header, two bytes for the oldest ID, then one byte per delta.
+        assertThat(PackedFeedCodec.encode(Arrays.asList(105L, 104L, 103L, 102L, 101L, 100L)).length).isEqualTo(PackedFeedCodec.HEADER_SIZE + 7);
+    }
+}